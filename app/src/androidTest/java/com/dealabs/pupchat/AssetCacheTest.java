@@ -0,0 +1,237 @@
+package com.dealabs.pupchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+@RunWith(AndroidJUnit4.class)
+public class AssetCacheTest {
+
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Wed, 01 Oct 2025 10:00:00 GMT";
+    private static final long EIGHT_DAYS_MS = 8 * 24 * 60 * 60 * 1000L;
+
+    private MockWebServer server;
+    private File dir;
+    private String url;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        url = server.url("/css/style.css").toString();
+        dir = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(), "asset_cache_test");
+        deleteDir(dir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        deleteDir(dir);
+    }
+
+    @Test
+    public void freshCopyIsServedWithoutARequest() throws Exception {
+        server.enqueue(asset("body{color:red}", "max-age=3600"));
+        AssetCache cache = newCache();
+
+        assertEquals("body{color:red}", bodyOf(cache.intercept(get(url))));
+        assertEquals("body{color:red}", bodyOf(cache.intercept(get(url))));
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void staleCopyIsServedWhileItRevalidates() throws Exception {
+        server.enqueue(asset("body{color:red}", "max-age=0"));
+        server.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", ETAG).setHeader("Cache-Control", "max-age=3600"));
+        AssetCache cache = newCache();
+
+        assertEquals("body{color:red}", bodyOf(cache.intercept(get(url))));
+        RecordedRequest first = server.takeRequest(5, TimeUnit.SECONDS);
+        assertNull(first.getHeader("If-None-Match"));
+
+        assertEquals("body{color:red}", bodyOf(cache.intercept(get(url))));
+        assertEquals(1, cache.getHits());
+        RecordedRequest revalidation = server.takeRequest(5, TimeUnit.SECONDS);
+        assertNotNull("no revalidation request", revalidation);
+        assertEquals(ETAG, revalidation.getHeader("If-None-Match"));
+        assertEquals(LAST_MODIFIED, revalidation.getHeader("If-Modified-Since"));
+        // The 304 renews the entry with the new max-age, so it is fresh again
+        waitFor(() -> readMeta(url).optLong("freshnessMs") == 3600_000L);
+        assertEquals("body{color:red}", bodyOf(cache.intercept(get(url))));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void pastMaxStaleTheCopyIsRevalidatedBeforeItIsServed() throws Exception {
+        server.enqueue(asset("body{color:red}", "max-age=60"));
+        server.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", ETAG));
+        bodyOf(newCache().intercept(get(url)));
+        server.takeRequest(5, TimeUnit.SECONDS);
+        ageEntry(url, EIGHT_DAYS_MS);
+
+        AssetCache cache = newCache();
+        WebResourceResponse response = cache.intercept(get(url));
+        RecordedRequest conditional = server.takeRequest(5, TimeUnit.SECONDS);
+        assertEquals(ETAG, conditional.getHeader("If-None-Match"));
+        assertEquals(LAST_MODIFIED, conditional.getHeader("If-Modified-Since"));
+        assertEquals(200, response.getStatusCode());
+        assertEquals("body{color:red}", bodyOf(response));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getNotModified());
+    }
+
+    @Test
+    public void pastMaxStaleAChangedAssetReplacesTheCopy() throws Exception {
+        server.enqueue(asset("body{color:red}", "max-age=60"));
+        server.enqueue(asset("body{color:blue}", "max-age=3600"));
+        bodyOf(newCache().intercept(get(url)));
+        ageEntry(url, EIGHT_DAYS_MS);
+
+        AssetCache cache = newCache();
+        assertEquals("body{color:blue}", bodyOf(cache.intercept(get(url))));
+        assertEquals("body{color:blue}", bodyOf(cache.intercept(get(url))));
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void errorsArePassedThroughAndNotStored() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404).setHeader("Content-Type", "text/css").setBody("missing"));
+        server.enqueue(asset("body{color:red}", "max-age=3600"));
+        AssetCache cache = newCache();
+
+        WebResourceResponse notFound = cache.intercept(get(url));
+        assertEquals(404, notFound.getStatusCode());
+        assertEquals("missing", bodyOf(notFound));
+        assertEquals("body{color:red}", bodyOf(cache.intercept(get(url))));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    private AssetCache newCache() {
+        return new AssetCache(dir, 1024 * 1024, server.url("/").toString());
+    }
+
+    private static MockResponse asset(String body, String cacheControl) {
+        return new MockResponse()
+                .setHeader("Content-Type", "text/css; charset=utf-8")
+                .setHeader("ETag", ETAG)
+                .setHeader("Last-Modified", LAST_MODIFIED)
+                .setHeader("Cache-Control", cacheControl)
+                .setBody(body);
+    }
+
+    private File metaFile(String url) {
+        return new File(dir, AssetCache.keyFor(url) + ".meta");
+    }
+
+    private JSONObject readMeta(String url) {
+        try {
+            return new JSONObject(new String(AssetCache.readFully(new FileInputStream(metaFile(url))), StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            return new JSONObject();
+        }
+    }
+
+    /** Moves an entry's store time back, as if it had sat on disk that long. */
+    private void ageEntry(String url, long ageMs) throws Exception {
+        JSONObject json = readMeta(url);
+        json.put("storedAt", System.currentTimeMillis() - ageMs);
+        try (OutputStream out = new FileOutputStream(metaFile(url))) {
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String bodyOf(WebResourceResponse response) throws Exception {
+        assertNotNull("request was not intercepted", response);
+        return new String(AssetCache.readFully(response.getData()), StandardCharsets.UTF_8);
+    }
+
+    private static void waitFor(BooleanSupplier condition) {
+        long deadline = SystemClock.elapsedRealtime() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (SystemClock.elapsedRealtime() > deadline) throw new AssertionError("timed out");
+            SystemClock.sleep(20);
+        }
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    private static WebResourceRequest get(String url) {
+        final Uri uri = Uri.parse(url);
+        final Map<String, String> headers = new HashMap<>();
+        return new WebResourceRequest() {
+            @Override
+            public Uri getUrl() {
+                return uri;
+            }
+
+            @Override
+            public boolean isForMainFrame() {
+                return false;
+            }
+
+            @Override
+            public boolean isRedirect() {
+                return false;
+            }
+
+            @Override
+            public boolean hasGesture() {
+                return false;
+            }
+
+            @Override
+            public String getMethod() {
+                return "GET";
+            }
+
+            @Override
+            public Map<String, String> getRequestHeaders() {
+                return headers;
+            }
+        };
+    }
+}
@@ -0,0 +1,150 @@
+package com.dealabs.pupchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+@RunWith(AndroidJUnit4.class)
+public class OutboxTest {
+
+    private static final String DATABASE = "outbox_test.db";
+    // The first backoff retry comes within 2 s; leave room for a slow emulator
+    private static final long TIMEOUT_S = 10;
+
+    private final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+    private MockWebServer server;
+    private Context context;
+    private Metrics metrics;
+    private Outbox outbox;
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE);
+        server = new MockWebServer();
+        server.start();
+        String baseUrl = server.url("/").toString();
+        metrics = new Metrics();
+        outbox = new Outbox(new OutboxDatabase(context, DATABASE), baseUrl.substring(0, baseUrl.length() - 1),
+                new ConnectivityMonitor(context), metrics);
+        outbox.addListener(sent::add);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        context.deleteDatabase(DATABASE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pathsOffTheSiteAreRefused() {
+        outbox.enqueue("//evil.example.com/send.php", "text=hi", null);
+    }
+
+    @Test
+    public void messagesAreSentInOrderWithTheirKeys() throws Exception {
+        for (int i = 0; i < 3; i++) server.enqueue(new MockResponse());
+        String[] keys = new String[3];
+        for (int i = 0; i < 3; i++) keys[i] = outbox.enqueue("/send.php", "text=" + i, null);
+
+        for (int i = 0; i < 3; i++) {
+            RecordedRequest request = takeRequest();
+            assertEquals("POST", request.getMethod());
+            assertEquals("/send.php", request.getPath());
+            assertEquals(keys[i], request.getHeader("Idempotency-Key"));
+            assertEquals("application/x-www-form-urlencoded", request.getHeader("Content-Type"));
+            assertEquals("text=" + i, request.getBody().readUtf8());
+        }
+        for (int i = 0; i < 3; i++) assertEquals(keys[i], takeSent());
+    }
+
+    @Test
+    public void aFailedMessageIsRetriedWithItsKeyBeforeLaterOnes() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(500));
+        server.enqueue(new MockResponse());
+        server.enqueue(new MockResponse());
+        String first = outbox.enqueue("/send.php", "text=first", null);
+        String second = outbox.enqueue("/send.php", "text=second", null);
+
+        assertEquals(first, takeRequest().getHeader("Idempotency-Key"));
+        assertEquals(first, takeRequest().getHeader("Idempotency-Key"));
+        assertEquals(second, takeRequest().getHeader("Idempotency-Key"));
+        assertEquals(first, takeSent());
+        assertEquals(second, takeSent());
+        assertEquals(1, metrics.get("outbox.retries"));
+    }
+
+    @Test
+    public void aConflictMeansTheServerAlreadyHasTheMessage() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(409));
+        server.enqueue(new MockResponse());
+        String first = outbox.enqueue("/send.php", "text=first", null);
+        assertEquals(first, takeRequest().getHeader("Idempotency-Key"));
+        assertEquals(first, takeSent());
+
+        // Not sent again ahead of the next message
+        String second = outbox.enqueue("/send.php", "text=second", null);
+        assertEquals(second, takeRequest().getHeader("Idempotency-Key"));
+        assertEquals(second, takeSent());
+    }
+
+    @Test
+    public void rejectedMessagesAreDropped() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(422));
+        server.enqueue(new MockResponse());
+        String rejected = outbox.enqueue("/send.php", "text=bad", null);
+        String next = outbox.enqueue("/send.php", "text=good", null);
+
+        assertEquals(rejected, takeRequest().getHeader("Idempotency-Key"));
+        assertEquals(next, takeRequest().getHeader("Idempotency-Key"));
+        assertEquals(next, takeSent());
+        assertEquals(1, metrics.get("outbox.rejected"));
+    }
+
+    @Test
+    public void anExpiredSessionHoldsTheMessageUntilLogin() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(302).setHeader("Location", "/login.php"));
+        server.enqueue(new MockResponse());
+        String key = outbox.enqueue("/send.php", "text=hi", null);
+
+        assertEquals(key, takeRequest().getHeader("Idempotency-Key"));
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+
+        outbox.onLoggedIn();
+        RecordedRequest resend = takeRequest();
+        assertEquals("/send.php", resend.getPath());
+        assertEquals(key, resend.getHeader("Idempotency-Key"));
+        assertEquals(key, takeSent());
+        assertEquals(1, metrics.get("outbox.needs_login"));
+    }
+
+    private RecordedRequest takeRequest() throws InterruptedException {
+        RecordedRequest request = server.takeRequest(TIMEOUT_S, TimeUnit.SECONDS);
+        assertNotNull("no request", request);
+        return request;
+    }
+
+    private String takeSent() throws InterruptedException {
+        String key = sent.poll(TIMEOUT_S, TimeUnit.SECONDS);
+        assertNotNull("no message reported sent", key);
+        return key;
+    }
+}
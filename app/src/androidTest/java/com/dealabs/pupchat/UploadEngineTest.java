@@ -0,0 +1,152 @@
+package com.dealabs.pupchat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+@RunWith(AndroidJUnit4.class)
+public class UploadEngineTest {
+
+    // Two full 512 KiB chunks and a bit, so a resume lands mid-file
+    private static final int SIZE = 1_200_000;
+    private static final int CHUNK = 512 * 1024;
+    private static final long TIMEOUT_S = 10;
+
+    private final BlockingQueue<JSONObject> events = new LinkedBlockingQueue<>();
+    private MockWebServer server;
+    private File file;
+    private File spoolDir;
+    private byte[] content;
+    private UploadEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        content = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++) content[i] = (byte) (i % 251);
+        file = new File(context.getCacheDir(), "upload_test.bin");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        spoolDir = new File(context.getCacheDir(), "upload_spool_test");
+
+        server = new MockWebServer();
+        server.start();
+        String baseUrl = server.url("/").toString();
+        engine = new UploadEngine(context, spoolDir, baseUrl.substring(0, baseUrl.length() - 1),
+                new ConnectivityMonitor(context), new Metrics());
+        engine.addListener(events::add);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void resumesFromTheOffsetTheServerReports() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(308).setHeader("Range", "bytes=0-" + (CHUNK - 1)));
+        server.enqueue(new MockResponse().setResponseCode(503));
+        // Asked after the failure, the server says it kept more than the first chunk
+        server.enqueue(new MockResponse().setResponseCode(308).setHeader("Range", "bytes=0-699999"));
+        server.enqueue(new MockResponse().setResponseCode(201).setBody("{\"ok\":true}"));
+
+        String id = engine.enqueue(Uri.fromFile(file), "/upload.php", "batch");
+
+        RecordedRequest first = takeRequest();
+        assertEquals("PUT", first.getMethod());
+        assertEquals(id, first.getRequestUrl().queryParameter("upload_id"));
+        assertChunk(first, 0, CHUNK);
+        assertChunk(takeRequest(), CHUNK, CHUNK);
+
+        RecordedRequest query = takeRequest();
+        assertEquals(id, query.getRequestUrl().queryParameter("upload_id"));
+        assertEquals("bytes */" + SIZE, query.getHeader("Content-Range"));
+        assertEquals(0, query.getBodySize());
+
+        assertChunk(takeRequest(), 700_000, SIZE - 700_000);
+
+        JSONObject done = awaitFinished();
+        assertEquals("done", done.getString("state"));
+        assertEquals(SIZE, done.getLong("offset"));
+        assertEquals("{\"ok\":true}", done.getString("response"));
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void aRefusedUploadFailsWithoutRetrying() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(403));
+
+        engine.enqueue(Uri.fromFile(file), "/upload.php", "batch");
+
+        JSONObject failed = awaitFinished();
+        assertEquals("failed", failed.getString("state"));
+        assertEquals("HTTP 403", failed.getString("error"));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void anEmptyFileIsOneEmptyRequest() throws Exception {
+        File empty = new File(file.getParentFile(), "upload_test_empty.bin");
+        new FileOutputStream(empty).close();
+        server.enqueue(new MockResponse().setResponseCode(201));
+
+        engine.enqueue(Uri.fromFile(empty), "/upload.php", "batch");
+
+        RecordedRequest request = takeRequest();
+        assertEquals("bytes */0", request.getHeader("Content-Range"));
+        assertEquals(0, request.getBodySize());
+        JSONObject done = awaitFinished();
+        assertEquals("done", done.getString("state"));
+        assertEquals(1, server.getRequestCount());
+        //noinspection ResultOfMethodCallIgnored
+        empty.delete();
+    }
+
+    private void assertChunk(RecordedRequest request, int start, int length) {
+        assertEquals("bytes " + start + "-" + (start + length - 1) + "/" + SIZE, request.getHeader("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, start, start + length), request.getBody().readByteArray());
+    }
+
+    private RecordedRequest takeRequest() throws InterruptedException {
+        RecordedRequest request = server.takeRequest(TIMEOUT_S, TimeUnit.SECONDS);
+        assertNotNull("no request", request);
+        return request;
+    }
+
+    /** Returns the first event in a final state. */
+    private JSONObject awaitFinished() throws Exception {
+        while (true) {
+            JSONObject event = events.poll(TIMEOUT_S, TimeUnit.SECONDS);
+            assertNotNull("upload never finished", event);
+            String state = event.getString("state");
+            if (state.equals("done") || state.equals("failed") || state.equals("cancelled")) return event;
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package com.dealabs.pupchat;
+
+import android.net.Uri;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk cache for the site's static assets (CSS, JS, images, fonts), served from
+ * {@code shouldInterceptRequest}. Entries are kept in a size-bounded LRU, revalidated with
+ * ETag / Last-Modified and served stale while a background revalidation runs.
+ */
+class AssetCache {
+
+    private static final String TAG = "PupChatAssetCache";
+
+    private static final Set<String> CACHEABLE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "css", "js", "png", "jpg", "jpeg", "gif", "webp", "svg", "ico", "woff", "woff2", "ttf"));
+
+    private static final int CONNECT_TIMEOUT_MS = 15_000;
+    private static final int READ_TIMEOUT_MS = 20_000;
+    private static final int MAX_ENTRY_BYTES = 2 * 1024 * 1024;
+    // Used when the server sends no max-age (free hosts usually don't)
+    private static final long DEFAULT_FRESHNESS_MS = 10 * 60 * 1000L;
+    // Past this age a stale entry is refetched instead of served while revalidating
+    private static final long MAX_STALE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    private final File dir;
+    private final long maxBytes;
+    private final String host;
+    private final ExecutorService revalidator = Executors.newFixedThreadPool(2);
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(64, 0.75f, true);
+    private final Set<String> revalidating = new HashSet<>();
+    private long totalBytes;
+    private boolean loaded;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    AssetCache(File dir, long maxBytes, String baseUrl) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.host = Uri.parse(baseUrl).getHost();
+    }
+
+    /**
+     * Returns a response for cacheable asset requests, or null to let the WebView load the
+     * request itself. Called on the WebView's IO thread.
+     */
+    WebResourceResponse intercept(WebResourceRequest request) {
+        if (!isCacheable(request)) return null;
+        ensureLoaded();
+
+        String url = request.getUrl().toString();
+        String key = keyFor(url);
+        Entry entry;
+        synchronized (this) {
+            entry = index.get(key);
+        }
+
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.storedAt < entry.freshnessMs + MAX_STALE_MS) {
+            WebResourceResponse cached = openEntry(entry);
+            if (cached != null) {
+                hits.incrementAndGet();
+                bytesSaved.addAndGet(entry.size);
+                if (now - entry.storedAt >= entry.freshnessMs) {
+                    scheduleRevalidation(entry, request.getRequestHeaders());
+                }
+                return cached;
+            }
+        }
+
+        misses.incrementAndGet();
+        try {
+            return fetch(url, request.getRequestHeaders(), entry);
+        } catch (IOException e) {
+            Log.w(TAG, "Fetch failed for " + url + ", falling back to WebView", e);
+            return null;
+        }
+    }
+
+    /** Reads the on-disk index ahead of the first request. */
+    void warmUp() {
+        ensureLoaded();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getRevalidations() {
+        return revalidations.get();
+    }
+
+    long getNotModified() {
+        return notModified.get();
+    }
+
+    long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+
+    String describeStats() {
+        return "hits=" + hits.get() + " misses=" + misses.get()
+                + " revalidations=" + revalidations.get() + " notModified=" + notModified.get()
+                + " bytesSaved=" + bytesSaved.get() + " size=" + getSizeBytes();
+    }
+
+    JSONObject snapshot() throws JSONException {
+        return new JSONObject()
+                .put("hits", hits.get())
+                .put("misses", misses.get())
+                .put("revalidations", revalidations.get())
+                .put("notModified", notModified.get())
+                .put("bytesSaved", bytesSaved.get())
+                .put("sizeBytes", getSizeBytes());
+    }
+
+    private boolean isCacheable(WebResourceRequest request) {
+        if (!"GET".equalsIgnoreCase(request.getMethod())) return false;
+        Uri uri = request.getUrl();
+        if (host == null || !host.equalsIgnoreCase(uri.getHost())) return false;
+        if (request.getRequestHeaders() != null && request.getRequestHeaders().containsKey("Range")) {
+            return false;
+        }
+        String path = uri.getPath();
+        if (path == null) return false;
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/')) return false;
+        return CACHEABLE_EXTENSIONS.contains(path.substring(dot + 1).toLowerCase(Locale.US));
+    }
+
+    // --- Network ---
+
+    private WebResourceResponse fetch(String url, Map<String, String> requestHeaders, Entry previous) throws IOException {
+        HttpURLConnection connection = openConnection(url, requestHeaders, previous);
+        try {
+            int status = connection.getResponseCode();
+            storeCookies(url, connection);
+
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+                notModified.incrementAndGet();
+                touch(previous, connection);
+                WebResourceResponse cached = openEntry(previous);
+                if (cached != null) {
+                    bytesSaved.addAndGet(previous.size);
+                    return cached;
+                }
+                return null;
+            }
+            // WebResourceResponse rejects 3xx codes; let the WebView handle anything odd itself
+            if (status >= 300 && status < 400) return null;
+
+            String mimeType = mimeTypeOf(connection.getContentType());
+            String encoding = charsetOf(connection.getContentType());
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            byte[] body = in != null ? readFully(in) : new byte[0];
+
+            if (status == HttpURLConnection.HTTP_OK && isStorable(connection, mimeType, body.length)) {
+                store(url, connection, mimeType, encoding, body);
+            }
+            return buildResponse(mimeType, encoding, status, connection.getResponseMessage(),
+                    responseHeaders(connection), new ByteArrayInputStream(body));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void scheduleRevalidation(final Entry entry, final Map<String, String> requestHeaders) {
+        synchronized (this) {
+            if (!revalidating.add(entry.key)) return;
+        }
+        revalidator.execute(() -> {
+            try {
+                revalidations.incrementAndGet();
+                HttpURLConnection connection = openConnection(entry.url, requestHeaders, entry);
+                try {
+                    int status = connection.getResponseCode();
+                    if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        notModified.incrementAndGet();
+                        touch(entry, connection);
+                    } else if (status == HttpURLConnection.HTTP_OK) {
+                        String mimeType = mimeTypeOf(connection.getContentType());
+                        byte[] body = readFully(connection.getInputStream());
+                        if (isStorable(connection, mimeType, body.length)) {
+                            store(entry.url, connection, mimeType, charsetOf(connection.getContentType()), body);
+                        }
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Revalidation failed for " + entry.url, e);
+            } finally {
+                synchronized (AssetCache.this) {
+                    revalidating.remove(entry.key);
+                }
+            }
+        });
+    }
+
+    private HttpURLConnection openConnection(String url, Map<String, String> requestHeaders, Entry validator) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        if (requestHeaders != null) {
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                // Leave compression to HttpURLConnection so bodies arrive decoded
+                if ("Accept-Encoding".equalsIgnoreCase(header.getKey())) continue;
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        // The host's anti-bot check relies on a cookie the WebView already holds
+        String cookies = CookieManager.getInstance().getCookie(url);
+        if (cookies != null) {
+            connection.setRequestProperty("Cookie", cookies);
+        }
+        if (validator != null) {
+            if (validator.etag != null) connection.setRequestProperty("If-None-Match", validator.etag);
+            if (validator.lastModified != null) connection.setRequestProperty("If-Modified-Since", validator.lastModified);
+        }
+        return connection;
+    }
+
+    private void storeCookies(String url, HttpURLConnection connection) {
+        List<String> setCookies = connection.getHeaderFields().get("Set-Cookie");
+        if (setCookies == null) return;
+        CookieManager cookieManager = CookieManager.getInstance();
+        for (String cookie : setCookies) {
+            cookieManager.setCookie(url, cookie);
+        }
+    }
+
+    private boolean isStorable(HttpURLConnection connection, String mimeType, int length) {
+        if (length == 0 || length > MAX_ENTRY_BYTES) return false;
+        // An HTML body for an asset URL is the host's challenge or error page, never the asset
+        if ("text/html".equals(mimeType)) return false;
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        return cacheControl == null || !cacheControl.toLowerCase(Locale.US).contains("no-store");
+    }
+
+    // --- Disk store ---
+
+    private synchronized void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Unable to create cache directory " + dir);
+            return;
+        }
+        // Writes cut short by the process dying
+        File[] tmpFiles = dir.listFiles((d, name) -> name.endsWith(".tmp"));
+        if (tmpFiles != null) {
+            for (File tmp : tmpFiles) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+        }
+        File[] metaFiles = dir.listFiles((d, name) -> name.endsWith(".meta"));
+        if (metaFiles == null) return;
+        // Oldest access first so the rebuilt LRU order matches what was on disk
+        List<File> sorted = new ArrayList<>(Arrays.asList(metaFiles));
+        Collections.sort(sorted, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File metaFile : sorted) {
+            Entry entry = Entry.read(metaFile);
+            if (entry == null || !bodyFile(entry.key).isFile()) {
+                deleteFiles(metaFile.getName().replace(".meta", ""));
+                continue;
+            }
+            index.put(entry.key, entry);
+            totalBytes += entry.size;
+        }
+        trimToSize();
+    }
+
+    private void store(String url, HttpURLConnection connection, String mimeType, String encoding, byte[] body) {
+        Entry entry = new Entry();
+        entry.key = keyFor(url);
+        entry.url = url;
+        entry.mimeType = mimeType;
+        entry.encoding = encoding;
+        entry.etag = connection.getHeaderField("ETag");
+        entry.lastModified = connection.getHeaderField("Last-Modified");
+        entry.allowOrigin = connection.getHeaderField("Access-Control-Allow-Origin");
+        entry.storedAt = System.currentTimeMillis();
+        entry.freshnessMs = freshnessOf(connection);
+        entry.size = body.length;
+
+        // Unique per write: a foreground fetch and a revalidation of the same URL can overlap
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(entry.key, ".tmp", dir);
+            writeFile(tmp, body);
+            synchronized (this) {
+                if (!tmp.renameTo(bodyFile(entry.key))) {
+                    throw new IOException("rename failed");
+                }
+                entry.write(metaFile(entry.key));
+                Entry old = index.put(entry.key, entry);
+                if (old != null) totalBytes -= old.size;
+                totalBytes += entry.size;
+                trimToSize();
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unable to store " + url, e);
+            if (tmp != null) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+        }
+    }
+
+    private void touch(Entry entry, HttpURLConnection connection) {
+        synchronized (this) {
+            entry.storedAt = System.currentTimeMillis();
+            entry.freshnessMs = freshnessOf(connection);
+            String etag = connection.getHeaderField("ETag");
+            if (etag != null) entry.etag = etag;
+            try {
+                entry.write(metaFile(entry.key));
+            } catch (IOException | JSONException e) {
+                Log.w(TAG, "Unable to update " + entry.url, e);
+            }
+        }
+    }
+
+    private WebResourceResponse openEntry(Entry entry) {
+        try {
+            InputStream in = new FileInputStream(bodyFile(entry.key));
+            //noinspection ResultOfMethodCallIgnored
+            metaFile(entry.key).setLastModified(System.currentTimeMillis());
+            Map<String, String> headers = new HashMap<>();
+            if (entry.allowOrigin != null) headers.put("Access-Control-Allow-Origin", entry.allowOrigin);
+            return buildResponse(entry.mimeType, entry.encoding, 200, "OK", headers, in);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (index.remove(entry.key) != null) totalBytes -= entry.size;
+            }
+            deleteFiles(entry.key);
+            return null;
+        }
+    }
+
+    // Caller holds the lock
+    private void trimToSize() {
+        Iterator<Entry> it = index.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.size;
+            deleteFiles(eldest.key);
+        }
+    }
+
+    private File bodyFile(String key) {
+        return new File(dir, key + ".body");
+    }
+
+    private File metaFile(String key) {
+        return new File(dir, key + ".meta");
+    }
+
+    private void deleteFiles(String key) {
+        //noinspection ResultOfMethodCallIgnored
+        bodyFile(key).delete();
+        //noinspection ResultOfMethodCallIgnored
+        metaFile(key).delete();
+    }
+
+    // --- Helpers ---
+
+    private static WebResourceResponse buildResponse(String mimeType, String encoding, int status, String reason,
+                                                     Map<String, String> headers, InputStream body) {
+        if (reason == null || reason.isEmpty()) reason = status < 400 ? "OK" : "Error";
+        return new WebResourceResponse(mimeType, encoding, status, reason, headers, body);
+    }
+
+    private static final Set<String> HOP_HEADERS = new HashSet<>(Arrays.asList(
+            "content-encoding", "content-length", "transfer-encoding", "connection", "set-cookie"));
+
+    private static Map<String, String> responseHeaders(HttpURLConnection connection) {
+        Map<String, String> headers = new HashMap<>();
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            if (header.getKey() == null || header.getValue().isEmpty()) continue;
+            // The body handed to the WebView is already decoded and fully buffered
+            if (HOP_HEADERS.contains(header.getKey().toLowerCase(Locale.US))) continue;
+            headers.put(header.getKey(), header.getValue().get(0));
+        }
+        return headers;
+    }
+
+    static long freshnessOf(HttpURLConnection connection) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                String d = directive.trim().toLowerCase(Locale.US);
+                if (d.equals("no-cache")) return 0;
+                if (d.startsWith("max-age=")) {
+                    try {
+                        return Long.parseLong(d.substring("max-age=".length())) * 1000L;
+                    } catch (NumberFormatException ignored) {
+                        // Fall through to the default
+                    }
+                }
+            }
+        }
+        return DEFAULT_FRESHNESS_MS;
+    }
+
+    static String mimeTypeOf(String contentType) {
+        if (contentType == null) return "application/octet-stream";
+        int semicolon = contentType.indexOf(';');
+        return (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType).trim().toLowerCase(Locale.US);
+    }
+
+    static String charsetOf(String contentType) {
+        if (contentType == null) return null;
+        for (String part : contentType.split(";")) {
+            String p = part.trim();
+            if (p.toLowerCase(Locale.US).startsWith("charset=")) {
+                return p.substring("charset=".length()).replace("\"", "");
+            }
+        }
+        return null;
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(String.format(Locale.US, "%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Entry {
+        String key;
+        String url;
+        String mimeType;
+        String encoding;
+        String etag;
+        String lastModified;
+        String allowOrigin;
+        long storedAt;
+        long freshnessMs;
+        long size;
+
+        void write(File file) throws IOException, JSONException {
+            JSONObject json = new JSONObject()
+                    .put("url", url)
+                    .put("mimeType", mimeType)
+                    .put("encoding", encoding)
+                    .put("etag", etag)
+                    .put("lastModified", lastModified)
+                    .put("allowOrigin", allowOrigin)
+                    .put("storedAt", storedAt)
+                    .put("freshnessMs", freshnessMs)
+                    .put("size", size);
+            writeFile(file, json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        static Entry read(File file) {
+            try {
+                JSONObject json = new JSONObject(new String(readFully(new FileInputStream(file)), StandardCharsets.UTF_8));
+                Entry entry = new Entry();
+                entry.url = json.getString("url");
+                entry.key = keyFor(entry.url);
+                entry.mimeType = json.getString("mimeType");
+                entry.encoding = json.optString("encoding", null);
+                entry.etag = json.optString("etag", null);
+                entry.lastModified = json.optString("lastModified", null);
+                entry.allowOrigin = json.optString("allowOrigin", null);
+                entry.storedAt = json.getLong("storedAt");
+                entry.freshnessMs = json.getLong("freshnessMs");
+                entry.size = json.getLong("size");
+                return entry;
+            } catch (IOException | JSONException e) {
+                return null;
+            }
+        }
+    }
+}
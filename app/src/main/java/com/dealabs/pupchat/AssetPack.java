@@ -0,0 +1,368 @@
+package com.dealabs.pupchat;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import androidx.webkit.WebViewAssetLoader;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Versioned pack of the site's static files (emoji, stickers, placeholders, fonts, core JS/CSS)
+ * shipped in assets/asset_pack and served for the matching site paths through a
+ * {@link WebViewAssetLoader}, with no network at all. Updates download a newer manifest and
+ * fetch only the files whose hash changed; files are stored by hash, so switching versions is
+ * just replacing the manifest.
+ */
+class AssetPack {
+
+    private static final String TAG = "PupChatAssetPack";
+    private static final String BUNDLED_DIR = "asset_pack";
+    private static final String MANIFEST_NAME = "manifest.json";
+    private static final int CONNECT_TIMEOUT_MS = 15_000;
+    private static final int READ_TIMEOUT_MS = 20_000;
+    private static final int MAX_FILE_BYTES = 4 * 1024 * 1024;
+
+    private final Context context;
+    private final File dir;
+    private final String baseUrl;
+    private final WebViewAssetLoader assetLoader;
+    private volatile Pack pack;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong filesDownloaded = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    // How long the site's static files take over the network, sampled while updating
+    private final SampleRing networkMs = new SampleRing(64);
+    private final SampleRing serveUs = new SampleRing(256);
+
+    AssetPack(Context context, File dir, String baseUrl) {
+        this.context = context.getApplicationContext();
+        this.dir = dir;
+        this.baseUrl = baseUrl;
+        Uri base = Uri.parse(baseUrl);
+        this.assetLoader = new WebViewAssetLoader.Builder()
+                .setDomain(base.getHost())
+                .setHttpAllowed("http".equals(base.getScheme()))
+                .addPathHandler("/", this::handle)
+                .build();
+    }
+
+    /** A packed file and its size, for per-page reporting. */
+    static final class Result {
+        final WebResourceResponse response;
+        final long bytes;
+
+        Result(WebResourceResponse response, long bytes) {
+            this.response = response;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Returns the packed copy of a site file, or null when the path isn't in the pack. Called
+     * on the WebView's IO thread.
+     */
+    Result intercept(WebResourceRequest request) {
+        if (!"GET".equalsIgnoreCase(request.getMethod())) return null;
+        Uri uri = request.getUrl();
+        // A query usually busts caches on purpose (?v=...), so only plain paths are served
+        if (uri.getQuery() != null) return null;
+        WebResourceResponse response = assetLoader.shouldInterceptRequest(uri);
+        if (response == null) return null;
+        FileInfo info = ensureLoaded().files.get(uri.getPath());
+        return new Result(response, info != null ? info.size : 0);
+    }
+
+    int getVersion() {
+        return ensureLoaded().version;
+    }
+
+    /** Reads the manifest ahead of the first request. */
+    void warmUp() {
+        ensureLoaded();
+    }
+
+    /**
+     * Fetches the manifest at the given URL and, if it is newer, downloads the files that
+     * changed and switches to it. Call off the main thread.
+     */
+    void update(String manifestUrl) {
+        Pack current = ensureLoaded();
+        Pack next;
+        try {
+            next = Pack.parse(new String(download(manifestUrl), StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Asset pack manifest fetch failed", e);
+            return;
+        }
+        if (next.version <= current.version) return;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + dir);
+            return;
+        }
+        Pack bundled = loadBundled();
+        int fetched = 0;
+        for (Map.Entry<String, FileInfo> file : next.files.entrySet()) {
+            FileInfo info = file.getValue();
+            FileInfo inBundle = bundled.files.get(file.getKey());
+            if (inBundle != null && inBundle.sha256.equals(info.sha256)) continue;
+            if (storedFile(info.sha256).isFile()) continue;
+            try {
+                fetchFile(file.getKey(), info);
+                fetched++;
+            } catch (IOException e) {
+                // Keep serving the old version rather than a pack with holes in it
+                Log.w(TAG, "Asset pack update to v" + next.version + " aborted at " + file.getKey(), e);
+                return;
+            }
+        }
+
+        try {
+            File tmp = new File(dir, MANIFEST_NAME + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(next.json.getBytes(StandardCharsets.UTF_8));
+            }
+            if (!tmp.renameTo(new File(dir, MANIFEST_NAME))) throw new IOException("rename failed");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save asset pack manifest", e);
+            return;
+        }
+        pack = resolve(next, bundled);
+        deleteUnreferenced(next);
+        Log.i(TAG, "Asset pack updated to v" + next.version + ", " + fetched + " of " + next.files.size() + " files downloaded");
+    }
+
+    JSONObject snapshot() throws JSONException {
+        long[] network = networkMs.sortedSnapshot();
+        long[] serve = serveUs.sortedSnapshot();
+        long networkP50 = SampleRing.percentile(network, 50);
+        long serveP50Us = SampleRing.percentile(serve, 50);
+        // Each hit would otherwise have been a typical network fetch of a site file
+        long latencySaved = networkP50 >= 0 ? hits.get() * (networkP50 - Math.max(serveP50Us, 0) / 1000) : -1;
+        return new JSONObject()
+                .put("version", getVersion())
+                .put("files", ensureLoaded().files.size())
+                .put("hits", hits.get())
+                .put("bytesServed", bytesServed.get())
+                .put("serveP50Us", serveP50Us)
+                .put("networkP50Ms", networkP50)
+                .put("latencySavedMsEstimate", latencySaved)
+                .put("filesDownloaded", filesDownloaded.get())
+                .put("bytesDownloaded", bytesDownloaded.get());
+    }
+
+    // --- Serving ---
+
+    private WebResourceResponse handle(String path) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        // The loader strips the "/" prefix it was registered with
+        FileInfo info = ensureLoaded().files.get("/" + path);
+        if (info == null) return null;
+        InputStream in;
+        try {
+            in = info.bundled
+                    ? context.getAssets().open(BUNDLED_DIR + "/files/" + path)
+                    : new FileInputStream(storedFile(info.sha256));
+        } catch (IOException e) {
+            Log.w(TAG, "Packed file missing for /" + path, e);
+            return null;
+        }
+        hits.incrementAndGet();
+        bytesServed.addAndGet(info.size);
+        serveUs.add((SystemClock.elapsedRealtimeNanos() - start) / 1000);
+        return new WebResourceResponse(info.mimeType, null, in);
+    }
+
+    // --- Manifests ---
+
+    private Pack ensureLoaded() {
+        Pack loaded = pack;
+        if (loaded != null) return loaded;
+        synchronized (this) {
+            if (pack == null) {
+                Pack bundled = loadBundled();
+                Pack downloaded = loadDownloaded();
+                // An app update can ship a newer pack than the last one downloaded
+                pack = downloaded != null && downloaded.version > bundled.version
+                        ? resolve(downloaded, bundled)
+                        : bundled;
+                Log.d(TAG, "Asset pack v" + pack.version + ", " + pack.files.size() + " files");
+            }
+            return pack;
+        }
+    }
+
+    private Pack loadBundled() {
+        try (InputStream in = context.getAssets().open(BUNDLED_DIR + "/" + MANIFEST_NAME)) {
+            Pack bundled = Pack.parse(new String(AssetCache.readFully(in), StandardCharsets.UTF_8));
+            for (FileInfo info : bundled.files.values()) info.bundled = true;
+            return bundled;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unable to read the bundled asset pack", e);
+            return Pack.empty();
+        }
+    }
+
+    private Pack loadDownloaded() {
+        File file = new File(dir, MANIFEST_NAME);
+        if (!file.isFile()) return null;
+        try {
+            return Pack.parse(new String(AssetCache.readFully(new FileInputStream(file)), StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unable to read the downloaded asset pack", e);
+            return null;
+        }
+    }
+
+    /** Points each file at the bundled copy when its hash matches, else at the downloaded one. */
+    private Pack resolve(Pack next, Pack bundled) {
+        Iterator<Map.Entry<String, FileInfo>> it = next.files.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, FileInfo> file = it.next();
+            FileInfo inBundle = bundled.files.get(file.getKey());
+            FileInfo info = file.getValue();
+            info.bundled = inBundle != null && inBundle.sha256.equals(info.sha256);
+            if (!info.bundled && !storedFile(info.sha256).isFile()) it.remove();
+        }
+        return next;
+    }
+
+    private void deleteUnreferenced(Pack current) {
+        Set<String> keep = new HashSet<>();
+        for (FileInfo info : current.files.values()) keep.add(info.sha256);
+        File[] stored = dir.listFiles((d, name) -> !name.equals(MANIFEST_NAME));
+        if (stored == null) return;
+        for (File file : stored) {
+            if (!keep.contains(file.getName())) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private File storedFile(String sha256) {
+        return new File(dir, sha256);
+    }
+
+    // --- Network ---
+
+    private void fetchFile(String path, FileInfo info) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        byte[] body = download(baseUrl + path);
+        networkMs.add(SystemClock.elapsedRealtime() - start);
+        if (body.length != info.size || !info.sha256.equals(sha256Of(body))) {
+            throw new IOException("hash mismatch for " + path);
+        }
+        File tmp = new File(dir, info.sha256 + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(body);
+        }
+        if (!tmp.renameTo(storedFile(info.sha256))) throw new IOException("rename failed");
+        filesDownloaded.incrementAndGet();
+        bytesDownloaded.addAndGet(body.length);
+    }
+
+    private static byte[] download(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            // The host's anti-bot check relies on a cookie the WebView already holds
+            String cookies = CookieManager.getInstance().getCookie(url);
+            if (cookies != null) connection.setRequestProperty("Cookie", cookies);
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) throw new IOException("HTTP " + status + " for " + url);
+            if (connection.getContentLengthLong() > MAX_FILE_BYTES) throw new IOException("too large: " + url);
+            return AssetCache.readFully(connection.getInputStream());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String sha256Of(byte[] data) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(String.format(Locale.US, "%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class FileInfo {
+        String sha256;
+        long size;
+        String mimeType;
+        boolean bundled;
+    }
+
+    /**
+     * One version of the pack: {"version": 3, "files": {"/js/chat.js": {"sha256": "...",
+     * "size": 1234, "type": "application/javascript"}}}.
+     */
+    private static final class Pack {
+        int version;
+        String json;
+        Map<String, FileInfo> files = new HashMap<>();
+
+        static Pack empty() {
+            Pack pack = new Pack();
+            pack.json = "{}";
+            pack.files = Collections.emptyMap();
+            return pack;
+        }
+
+        static Pack parse(String json) throws JSONException {
+            JSONObject root = new JSONObject(json);
+            Pack pack = new Pack();
+            pack.version = root.getInt("version");
+            pack.json = json;
+            JSONObject files = root.optJSONObject("files");
+            if (files == null) return pack;
+            Iterator<String> paths = files.keys();
+            while (paths.hasNext()) {
+                String path = paths.next();
+                JSONObject file = files.getJSONObject(path);
+                if (!path.startsWith("/") || path.contains("..")) continue;
+                FileInfo info = new FileInfo();
+                info.sha256 = file.getString("sha256").toLowerCase(Locale.US);
+                info.size = file.getLong("size");
+                info.mimeType = file.optString("type", "application/octet-stream");
+                pack.files.put(path, info);
+            }
+            return pack;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.dealabs.pupchat;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter: each delay is drawn from the upper half of the current
+ * window, so retries from many clients don't line up after an outage.
+ */
+class Backoff {
+
+    private final long baseMs;
+    private final long maxMs;
+    private final Random random = new Random();
+    private int attempts;
+
+    Backoff(long baseMs, long maxMs) {
+        this.baseMs = baseMs;
+        this.maxMs = maxMs;
+    }
+
+    synchronized long nextDelayMs() {
+        long window = baseMs << Math.min(attempts, 20);
+        if (window <= 0 || window > maxMs) window = maxMs;
+        attempts++;
+        long half = window / 2;
+        return half + (long) (random.nextDouble() * (window - half));
+    }
+
+    synchronized int getAttempts() {
+        return attempts;
+    }
+
+    synchronized void reset() {
+        attempts = 0;
+    }
+}
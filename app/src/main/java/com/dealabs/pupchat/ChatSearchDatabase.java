@@ -0,0 +1,69 @@
+package com.dealabs.pupchat;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * On-device copy of chat messages the user has seen, with an FTS4 index over them. The index
+ * is an external-content table kept in sync with {@link #TABLE} by triggers, so message text
+ * is stored once.
+ */
+class ChatSearchDatabase extends SQLiteOpenHelper {
+
+    private static final String NAME = "chat_search.db";
+    private static final int VERSION = 1;
+
+    static final String TABLE = "messages";
+    static final String FTS_TABLE = "messages_fts";
+    static final String COL_ID = "_id";
+    static final String COL_MESSAGE_ID = "message_id";
+    static final String COL_CONVERSATION = "conversation";
+    static final String COL_SENDER = "sender";
+    static final String COL_BODY = "body";
+    static final String COL_SENT_AT = "sent_at";
+    static final String COL_INDEXED_AT = "indexed_at";
+
+    ChatSearchDatabase(Context context) {
+        super(context, NAME, null, VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Searches on the JS bridge thread shouldn't wait for a batch write to commit
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COL_MESSAGE_ID + " TEXT NOT NULL UNIQUE, "
+                + COL_CONVERSATION + " TEXT NOT NULL, "
+                + COL_SENDER + " TEXT NOT NULL, "
+                + COL_BODY + " TEXT NOT NULL, "
+                + COL_SENT_AT + " INTEGER NOT NULL, "
+                + COL_INDEXED_AT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX " + TABLE + "_sent_at ON " + TABLE + " (" + COL_SENT_AT + ")");
+        db.execSQL("CREATE INDEX " + TABLE + "_conversation ON " + TABLE + " (" + COL_CONVERSATION + ")");
+
+        // The framework's SQLite is built with FTS3/4 but not FTS5
+        db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE + " USING fts4(content=\"" + TABLE + "\", "
+                + COL_BODY + ", " + COL_SENDER + ", tokenize=unicode61)");
+        db.execSQL("CREATE TRIGGER " + TABLE + "_bu BEFORE UPDATE ON " + TABLE + " BEGIN "
+                + "DELETE FROM " + FTS_TABLE + " WHERE docid = old.rowid; END");
+        db.execSQL("CREATE TRIGGER " + TABLE + "_bd BEFORE DELETE ON " + TABLE + " BEGIN "
+                + "DELETE FROM " + FTS_TABLE + " WHERE docid = old.rowid; END");
+        db.execSQL("CREATE TRIGGER " + TABLE + "_au AFTER UPDATE ON " + TABLE + " BEGIN "
+                + "INSERT INTO " + FTS_TABLE + " (docid, " + COL_BODY + ", " + COL_SENDER + ") "
+                + "VALUES (new.rowid, new." + COL_BODY + ", new." + COL_SENDER + "); END");
+        db.execSQL("CREATE TRIGGER " + TABLE + "_ai AFTER INSERT ON " + TABLE + " BEGIN "
+                + "INSERT INTO " + FTS_TABLE + " (docid, " + COL_BODY + ", " + COL_SENDER + ") "
+                + "VALUES (new.rowid, new." + COL_BODY + ", new." + COL_SENDER + "); END");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Only one version so far
+    }
+}
@@ -0,0 +1,409 @@
+package com.dealabs.pupchat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Full-text index of the chat messages the user has seen, so old messages can be searched
+ * instantly and offline. The page pushes messages as it renders them; they are deduplicated
+ * by message id and written in batches, one transaction each, on a single background thread.
+ * Searches rank matches with BM25 and run on the calling thread, or on a search thread when
+ * the page asks; only the site's own frames can reach the page's bridge. The index is capped
+ * in messages and bytes, pruning the oldest messages a batch at a time, and emptied whenever
+ * the session ends.
+ */
+class ChatSearchIndex {
+
+    private static final String TAG = "PupChatSearch";
+    static final String JS_BRIDGE_NAME = "PupChatSearch";
+
+    private static final long FLUSH_DELAY_MS = 500;
+    private static final int MAX_BATCH = 200;
+    private static final int MAX_BODY_CHARS = 4000;
+    private static final int MAX_MESSAGES = 50_000;
+    private static final long MAX_DB_BYTES = 32 * 1024 * 1024;
+    private static final int PRUNE_BATCH = 500;
+    private static final int MAX_RESULTS = 50;
+    // Matches ranked per query; the most recent ones win when a common word matches more
+    private static final int MAX_CANDIDATES = 1000;
+    // BM25 parameters, and how much a hit in the body counts against one in the sender's name
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final double[] COLUMN_WEIGHTS = {1.0, 0.5};
+
+    private final ChatSearchDatabase database;
+    private final Metrics metrics;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    // The page's searches, so they don't wait behind a write batch or a VACUUM
+    private final ExecutorService searcher = Executors.newSingleThreadExecutor();
+    // Keyed by message id, so a message rendered twice before a flush is written once
+    private final LinkedHashMap<String, ContentValues> pending = new LinkedHashMap<>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    private final AtomicLong messages = new AtomicLong(-1);
+    private final AtomicLong dbBytes = new AtomicLong(-1);
+    private final AtomicLong pruned = new AtomicLong();
+
+    ChatSearchIndex(Context context, Metrics metrics) {
+        this.database = new ChatSearchDatabase(context);
+        this.metrics = metrics;
+    }
+
+    /** Opens the database and reads its size, so the first search doesn't pay for it. */
+    void warmUp() {
+        executor.execute(this::updateSize);
+    }
+
+    /** Queues a message for indexing; returns false if it is missing an id or text. */
+    boolean add(String messageId, String conversation, String sender, String body, long sentAt) {
+        if (messageId == null || messageId.isEmpty() || body == null || body.trim().isEmpty()) return false;
+        ContentValues values = new ContentValues();
+        values.put(ChatSearchDatabase.COL_MESSAGE_ID, messageId);
+        values.put(ChatSearchDatabase.COL_CONVERSATION, conversation != null ? conversation : "");
+        values.put(ChatSearchDatabase.COL_SENDER, sender != null ? sender : "");
+        values.put(ChatSearchDatabase.COL_BODY, body.length() > MAX_BODY_CHARS ? body.substring(0, MAX_BODY_CHARS) : body);
+        values.put(ChatSearchDatabase.COL_SENT_AT, sentAt > 0 ? sentAt : System.currentTimeMillis());
+        synchronized (pending) {
+            pending.put(messageId, values);
+            if (pending.size() >= MAX_BATCH) {
+                executor.execute(this::flushNow);
+            } else if (scheduledFlush == null) {
+                scheduledFlush = executor.schedule(this::flushNow, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Best matches for the query, best first. Every word must match; the last one also
+     * matches as a prefix, so results show up while the user is typing. Pass a conversation
+     * to search only that one. Only the {@link #MAX_CANDIDATES} most recent matches are
+     * ranked, so for a very common word an older, better match can be missing.
+     */
+    List<Result> search(String query, String conversation, int limit) {
+        String match = toMatchExpression(query);
+        if (match == null) return Collections.emptyList();
+        limit = Math.max(1, Math.min(limit, MAX_RESULTS));
+        long start = SystemClock.elapsedRealtime();
+
+        String sql = "SELECT m." + ChatSearchDatabase.COL_MESSAGE_ID + ", m." + ChatSearchDatabase.COL_CONVERSATION
+                + ", m." + ChatSearchDatabase.COL_SENDER + ", m." + ChatSearchDatabase.COL_SENT_AT
+                + ", snippet(" + ChatSearchDatabase.FTS_TABLE + ", '[', ']', '…', 0, 12)"
+                + ", matchinfo(" + ChatSearchDatabase.FTS_TABLE + ", 'pcnalx')"
+                + " FROM " + ChatSearchDatabase.FTS_TABLE + " JOIN " + ChatSearchDatabase.TABLE + " m"
+                + " ON m." + ChatSearchDatabase.COL_ID + " = " + ChatSearchDatabase.FTS_TABLE + ".docid"
+                + " WHERE " + ChatSearchDatabase.FTS_TABLE + " MATCH ?"
+                + (conversation != null ? " AND m." + ChatSearchDatabase.COL_CONVERSATION + " = ?" : "")
+                + " ORDER BY m." + ChatSearchDatabase.COL_SENT_AT + " DESC LIMIT " + MAX_CANDIDATES;
+        String[] args = conversation != null ? new String[]{match, conversation} : new String[]{match};
+
+        List<Result> results = new ArrayList<>();
+        try (Cursor cursor = database.getReadableDatabase().rawQuery(sql, args)) {
+            while (cursor.moveToNext()) {
+                Result result = new Result();
+                result.messageId = cursor.getString(0);
+                result.conversation = cursor.getString(1);
+                result.sender = cursor.getString(2);
+                result.sentAt = cursor.getLong(3);
+                result.snippet = cursor.getString(4);
+                result.score = bm25(cursor.getBlob(5));
+                results.add(result);
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Search failed for " + match, e);
+            metrics.increment("search.errors");
+            return Collections.emptyList();
+        }
+        // Stable, so equal scores stay most recent first
+        Collections.sort(results, (a, b) -> Double.compare(b.score, a.score));
+        if (results.size() > limit) results = new ArrayList<>(results.subList(0, limit));
+
+        metrics.increment("search.queries");
+        metrics.recordTiming("search.query_ms", SystemClock.elapsedRealtime() - start);
+        return results;
+    }
+
+    /**
+     * Forgets every indexed message, including ones not written yet, so the next account to
+     * log in can't search the previous one's chats. The space is vacuumed so the text doesn't
+     * linger in free pages.
+     */
+    void clear() {
+        synchronized (pending) {
+            pending.clear();
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+        }
+        executor.execute(() -> {
+            long start = SystemClock.elapsedRealtime();
+            SQLiteDatabase db = database.getWritableDatabase();
+            try {
+                // The delete trigger removes each row's index entry along with it
+                db.delete(ChatSearchDatabase.TABLE, null, null);
+                db.execSQL("VACUUM");
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Unable to clear the search index", e);
+                metrics.increment("search.index_errors");
+                return;
+            }
+            updateSize();
+            metrics.increment("search.clears");
+            metrics.recordTiming("search.clear_ms", SystemClock.elapsedRealtime() - start);
+        });
+    }
+
+    /** Calls for the page: index, search and count (see {@link WebMessageBridge}). */
+    WebMessageBridge.Calls createJsBridge() {
+        return new JsBridge();
+    }
+
+    JSONObject snapshot() throws JSONException {
+        return new JSONObject()
+                .put("messages", messages.get())
+                .put("dbBytes", dbBytes.get())
+                .put("maxMessages", MAX_MESSAGES)
+                .put("maxDbBytes", MAX_DB_BYTES)
+                .put("pruned", pruned.get());
+    }
+
+    // --- Writing, on the executor thread ---
+
+    private void flushNow() {
+        List<ContentValues> batch;
+        synchronized (pending) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (pending.isEmpty()) return;
+            batch = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        long start = SystemClock.elapsedRealtime();
+        long now = System.currentTimeMillis();
+        int inserted = 0;
+        int updated = 0;
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues values : batch) {
+                values.put(ChatSearchDatabase.COL_INDEXED_AT, now);
+                if (db.insertWithOnConflict(ChatSearchDatabase.TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+                    inserted++;
+                } else {
+                    // Already indexed; only rewrite it (and its index entry) if it was edited
+                    updated += db.update(ChatSearchDatabase.TABLE, values,
+                            ChatSearchDatabase.COL_MESSAGE_ID + " = ? AND " + ChatSearchDatabase.COL_BODY + " != ?",
+                            new String[]{values.getAsString(ChatSearchDatabase.COL_MESSAGE_ID),
+                                    values.getAsString(ChatSearchDatabase.COL_BODY)});
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Unable to index " + batch.size() + " messages", e);
+            metrics.increment("search.index_errors");
+            return;
+        } finally {
+            db.endTransaction();
+        }
+        metrics.add("search.indexed", inserted);
+        metrics.add("search.updated", updated);
+        metrics.add("search.duplicates", batch.size() - inserted - updated);
+        metrics.recordTiming("search.batch_ms", SystemClock.elapsedRealtime() - start);
+
+        if (inserted > 0) {
+            updateSize();
+            pruneIfNeeded(db);
+        }
+    }
+
+    /** Deletes the oldest messages, one batch per call, until the index is within its caps. */
+    private void pruneIfNeeded(SQLiteDatabase db) {
+        if (messages.get() <= MAX_MESSAGES && dbBytes.get() <= MAX_DB_BYTES) return;
+        long start = SystemClock.elapsedRealtime();
+        int deleted;
+        db.beginTransaction();
+        try {
+            deleted = db.delete(ChatSearchDatabase.TABLE, ChatSearchDatabase.COL_ID + " IN (SELECT "
+                    + ChatSearchDatabase.COL_ID + " FROM " + ChatSearchDatabase.TABLE + " ORDER BY "
+                    + ChatSearchDatabase.COL_SENT_AT + " ASC LIMIT " + PRUNE_BATCH + ")", null);
+            // Fold a little of the index's segments together, rather than one long optimize
+            db.execSQL("INSERT INTO " + ChatSearchDatabase.FTS_TABLE + " (" + ChatSearchDatabase.FTS_TABLE
+                    + ") VALUES ('merge=200,8')");
+            db.setTransactionSuccessful();
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Unable to prune the search index", e);
+            return;
+        } finally {
+            db.endTransaction();
+        }
+        pruned.addAndGet(deleted);
+        metrics.add("search.pruned", deleted);
+        metrics.recordTiming("search.prune_ms", SystemClock.elapsedRealtime() - start);
+        updateSize();
+        // Freed pages are reused by later inserts, so the file stops growing rather than shrinking.
+        // Any further batches queue behind pending writes instead of holding them up.
+        if (deleted > 0) executor.execute(() -> pruneIfNeeded(db));
+    }
+
+    private void updateSize() {
+        SQLiteDatabase db = database.getReadableDatabase();
+        messages.set(DatabaseUtils.queryNumEntries(db, ChatSearchDatabase.TABLE));
+        long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        dbBytes.set((pages - freePages) * db.getPageSize());
+        metrics.set("search.messages", messages.get());
+    }
+
+    // --- Ranking ---
+
+    /**
+     * BM25 from FTS4's matchinfo 'pcnalx': phrase and column counts, row count, average and
+     * this row's token count per column, then hits per phrase and column (this row, all rows,
+     * rows with a hit).
+     */
+    static double bm25(byte[] matchinfo) {
+        if (matchinfo == null) return 0;
+        ByteBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+        int phrases = info.getInt(0);
+        int columns = info.getInt(4);
+        long rows = info.getInt(8) & 0xFFFFFFFFL;
+        int avgOffset = 3;
+        int lengthOffset = avgOffset + columns;
+        int hitsOffset = lengthOffset + columns;
+
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int c = 0; c < columns && c < COLUMN_WEIGHTS.length; c++) {
+                int x = hitsOffset + 3 * (p * columns + c);
+                int hitsHere = info.getInt(4 * x);
+                if (hitsHere == 0) continue;
+                int rowsWithHit = info.getInt(4 * (x + 2));
+                double idf = Math.log((rows - rowsWithHit + 0.5) / (rowsWithHit + 0.5));
+                // Words in most messages would get a negative weight; count them a little instead
+                if (idf < 0.01) idf = 0.01;
+                double avgLength = Math.max(1, info.getInt(4 * (avgOffset + c)));
+                double length = info.getInt(4 * (lengthOffset + c));
+                score += COLUMN_WEIGHTS[c] * idf * hitsHere * (K1 + 1)
+                        / (hitsHere + K1 * (1 - B + B * length / avgLength));
+            }
+        }
+        return score;
+    }
+
+    /** Turns what the user typed into an FTS query of quoted words, or null if there are none. */
+    static String toMatchExpression(String query) {
+        if (query == null) return null;
+        StringBuilder match = new StringBuilder();
+        String[] words = query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}_]+");
+        for (int i = 0; i < words.length; i++) {
+            if (words[i].isEmpty()) continue;
+            if (match.length() > 0) match.append(' ');
+            match.append('"').append(words[i]).append(i == words.length - 1 ? "*\"" : "\"");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    static final class Result {
+        String messageId;
+        String conversation;
+        String sender;
+        long sentAt;
+        String snippet;
+        double score;
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("id", messageId)
+                    .put("conversation", conversation)
+                    .put("sender", sender)
+                    .put("sentAt", sentAt)
+                    .put("snippet", snippet)
+                    .put("score", Math.round(score * 1000) / 1000.0);
+        }
+    }
+
+    private class JsBridge implements WebMessageBridge.Calls {
+
+        @Override
+        public void call(String method, JSONObject args, WebMessageBridge.Reply reply) {
+            switch (method) {
+                case "index":
+                    reply.send(index(args.optJSONArray("messages")));
+                    break;
+                case "search":
+                    // A query can take a while on a big index; keep it off the main thread
+                    final String query = args.optString("query");
+                    final String conversation = args.optString("conversation");
+                    final int limit = args.optInt("limit", MAX_RESULTS);
+                    searcher.execute(() -> reply.send(search(query, conversation, limit)));
+                    break;
+                case "count":
+                    reply.send(messages.get());
+                    break;
+                default:
+                    Log.w(TAG, "Unknown search bridge call " + method);
+                    reply.send(null);
+            }
+        }
+
+        /**
+         * Indexes an array of {id, conversation, sender, body, sentAt} messages and returns
+         * how many were accepted.
+         */
+        private int index(JSONArray array) {
+            if (array == null) return 0;
+            int accepted = 0;
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject message = array.optJSONObject(i);
+                if (message == null) continue;
+                if (add(message.optString("id", null), message.optString("conversation", null),
+                        message.optString("sender", null), message.optString("body", null),
+                        message.optLong("sentAt", 0))) {
+                    accepted++;
+                }
+            }
+            return accepted;
+        }
+
+        /** Results, best first. An empty conversation searches all of them. */
+        private JSONArray search(String query, String conversation, int limit) {
+            JSONArray array = new JSONArray();
+            try {
+                for (Result result : ChatSearchIndex.this.search(query,
+                        conversation.isEmpty() ? null : conversation, limit)) {
+                    array.put(result.toJson());
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Unable to encode search results", e);
+            }
+            return array;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.dealabs.pupchat;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Tracks the default network through a {@link ConnectivityManager.NetworkCallback} so that
+ * connectivity and metered state can be read from any thread without a system call.
+ */
+class ConnectivityMonitor {
+
+    private static final String TAG = "PupChatConnectivity";
+
+    interface Listener {
+        /** Called on the main thread whenever connected or metered state changes. */
+        void onConnectivityChanged(boolean connected, boolean metered);
+    }
+
+    private final ConnectivityManager connectivityManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // Optimistic until the first callback or the initial query says otherwise
+    private volatile boolean connected = true;
+    private volatile boolean metered;
+    private boolean callbackSeen;
+
+    ConnectivityMonitor(Context context) {
+        connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    void start(Executor ioExecutor) {
+        if (connectivityManager == null) return;
+        connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                update(capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET),
+                        !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED), true);
+            }
+
+            @Override
+            public void onLost(Network network) {
+                update(false, metered, true);
+            }
+        });
+
+        // Without a default network no callback ever arrives, so look once off the main thread
+        ioExecutor.execute(() -> {
+            Network network = connectivityManager.getActiveNetwork();
+            NetworkCapabilities capabilities = network != null ? connectivityManager.getNetworkCapabilities(network) : null;
+            if (capabilities == null) {
+                update(false, false, false);
+            } else {
+                update(capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET),
+                        !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED), false);
+            }
+        });
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    boolean isMetered() {
+        return metered;
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private synchronized void update(boolean nowConnected, boolean nowMetered, boolean fromCallback) {
+        // The one-off query must not overwrite fresher callback state
+        if (!fromCallback && callbackSeen) return;
+        if (fromCallback) callbackSeen = true;
+        if (nowConnected == connected && nowMetered == metered) return;
+        connected = nowConnected;
+        metered = nowMetered;
+        Log.d(TAG, "connected=" + nowConnected + " metered=" + nowMetered);
+        mainHandler.post(() -> {
+            for (Listener listener : listeners) {
+                listener.onConnectivityChanged(nowConnected, nowMetered);
+            }
+        });
+    }
+}
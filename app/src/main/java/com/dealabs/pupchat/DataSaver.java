@@ -0,0 +1,466 @@
+package com.dealabs.pupchat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Data-saver mode for metered networks: images from the site are fetched natively, downscaled
+ * to the WebView's width and re-encoded as WebP. Results are cached on disk keyed by URL and
+ * target width, so each size is only transcoded once. Images that don't get smaller are cached
+ * as they are, since the asset cache never sees them. Each cached file keeps the original's
+ * ETag / Last-Modified and size next to it, and is revalidated against the original the same
+ * way {@link AssetCache} revalidates its entries.
+ */
+class DataSaver {
+
+    private static final String TAG = "PupChatDataSaver";
+
+    // GIFs would lose animation, SVGs are already small and scale freely
+    private static final Set<String> IMAGE_EXTENSIONS = new HashSet<>(Arrays.asList("png", "jpg", "jpeg", "webp"));
+    private static final int CONNECT_TIMEOUT_MS = 15_000;
+    private static final int READ_TIMEOUT_MS = 20_000;
+    private static final String WEBP = "image/webp";
+    private static final int WEBP_QUALITY = 70;
+    // Round widths so small layout changes don't create a new cache entry each time
+    private static final int WIDTH_BUCKET_PX = 120;
+    private static final long MAX_DISK_BYTES = 15 * 1024 * 1024;
+    // Same limit as the asset cache, so one huge image can't push everything else out
+    private static final int MAX_ENTRY_BYTES = 2 * 1024 * 1024;
+    private static final int TRIM_EVERY_WRITES = 20;
+    // A temp file this old was left by a write the process didn't live to finish
+    private static final long ABANDONED_TMP_MS = 60 * 60 * 1000L;
+    // Past this age a stale copy is refetched instead of served while revalidating
+    private static final long MAX_STALE_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    private final File dir;
+    private final String host;
+    private final ConnectivityMonitor connectivityMonitor;
+    private final ExecutorService revalidator = Executors.newSingleThreadExecutor();
+    private final Set<String> revalidating = new HashSet<>();
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicInteger writesSinceTrim = new AtomicInteger();
+
+    /** Original and served sizes for one image, for per-page reporting. */
+    static final class Result {
+        final WebResourceResponse response;
+        final long originalBytes;
+        final long servedBytes;
+
+        Result(WebResourceResponse response, long originalBytes, long servedBytes) {
+            this.response = response;
+            this.originalBytes = originalBytes;
+            this.servedBytes = servedBytes;
+        }
+    }
+
+    DataSaver(File dir, String baseUrl, ConnectivityMonitor connectivityMonitor) {
+        this.dir = dir;
+        this.host = Uri.parse(baseUrl).getHost();
+        this.connectivityMonitor = connectivityMonitor;
+    }
+
+    /** On while the default network is metered. */
+    boolean isActive() {
+        return connectivityMonitor.isMetered();
+    }
+
+    /**
+     * Returns the response for a site image, transcoded when that makes it smaller, or null to
+     * let the rest of the pipeline handle the request. Called on the WebView's IO thread.
+     */
+    Result intercept(WebResourceRequest request, int viewportWidthPx) {
+        if (!isActive() || viewportWidthPx <= 0 || !isImageRequest(request)) return null;
+
+        String url = request.getUrl().toString();
+        int targetWidth = ((viewportWidthPx + WIDTH_BUCKET_PX - 1) / WIDTH_BUCKET_PX) * WIDTH_BUCKET_PX;
+        String key = AssetCache.keyFor(url + "@" + targetWidth);
+        Entry entry = Entry.read(metaFile(key));
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.storedAt < entry.freshnessMs + MAX_STALE_MS) {
+            Result cached = openEntry(key, entry);
+            if (cached != null) {
+                if (now - entry.storedAt >= entry.freshnessMs) {
+                    scheduleRevalidation(key, entry, request.getRequestHeaders(), targetWidth);
+                }
+                return cached;
+            }
+        }
+
+        try {
+            return fetchAndTranscode(url, request.getRequestHeaders(), targetWidth, key, entry);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Transcode failed for " + url + ", loading original", e);
+            return null;
+        }
+    }
+
+    long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    JSONObject snapshot() throws JSONException {
+        return new JSONObject()
+                .put("active", isActive())
+                .put("bytesIn", bytesIn.get())
+                .put("bytesOut", bytesOut.get())
+                .put("cacheHits", cacheHits.get())
+                .put("notModified", notModified.get());
+    }
+
+    private boolean isImageRequest(WebResourceRequest request) {
+        if (!"GET".equalsIgnoreCase(request.getMethod())) return false;
+        Uri uri = request.getUrl();
+        if (host == null || !host.equalsIgnoreCase(uri.getHost())) return false;
+        String path = uri.getPath();
+        if (path == null) return false;
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/')) return false;
+        return IMAGE_EXTENSIONS.contains(path.substring(dot + 1).toLowerCase(Locale.US));
+    }
+
+    private Result fetchAndTranscode(String url, Map<String, String> requestHeaders, int targetWidth, String key,
+                                     Entry previous) throws IOException {
+        HttpURLConnection connection = openConnection(url, requestHeaders, previous);
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+                notModified.incrementAndGet();
+                touch(key, previous, connection);
+                return openEntry(key, previous);
+            }
+            // WebResourceResponse rejects 3xx codes; let the WebView handle anything odd itself
+            if (status >= 300 && status < 400) return null;
+
+            String mimeType = AssetCache.mimeTypeOf(connection.getContentType());
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            byte[] original = in != null ? AssetCache.readFully(in) : new byte[0];
+            bytesIn.addAndGet(original.length);
+
+            boolean image = status == HttpURLConnection.HTTP_OK && mimeType.startsWith("image/");
+            if (!image) {
+                // An error or a challenge page: pass it on, and keep any good copy we have
+                bytesOut.addAndGet(original.length);
+                String reason = connection.getResponseMessage();
+                return new Result(new WebResourceResponse(mimeType, AssetCache.charsetOf(connection.getContentType()),
+                        status, reason != null && !reason.isEmpty() ? reason : status < 400 ? "OK" : "Error",
+                        corsHeaders(connection), new ByteArrayInputStream(original)), original.length, original.length);
+            }
+
+            byte[] transcoded = transcode(original, targetWidth);
+            if (transcoded == null || transcoded.length >= original.length) {
+                // Already small enough: keep the original, so the next page load revalidates
+                // it instead of downloading it again
+                if (isStorable(connection, original.length)) store(key, url, connection, original.length, mimeType, original);
+                bytesOut.addAndGet(original.length);
+                return new Result(imageResponse(mimeType, new ByteArrayInputStream(original), corsHeaders(connection)),
+                        original.length, original.length);
+            }
+
+            if (isStorable(connection, transcoded.length)) store(key, url, connection, original.length, WEBP, transcoded);
+            bytesOut.addAndGet(transcoded.length);
+            return new Result(imageResponse(WEBP, new ByteArrayInputStream(transcoded), corsHeaders(connection)),
+                    original.length, transcoded.length);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void scheduleRevalidation(String key, Entry entry, Map<String, String> requestHeaders, int targetWidth) {
+        synchronized (revalidating) {
+            if (!revalidating.add(key)) return;
+        }
+        revalidator.execute(() -> {
+            try {
+                HttpURLConnection connection = openConnection(entry.url, requestHeaders, entry);
+                try {
+                    int status = connection.getResponseCode();
+                    if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        notModified.incrementAndGet();
+                        touch(key, entry, connection);
+                    } else if (status == HttpURLConnection.HTTP_OK
+                            && AssetCache.mimeTypeOf(connection.getContentType()).startsWith("image/")) {
+                        byte[] original = AssetCache.readFully(connection.getInputStream());
+                        bytesIn.addAndGet(original.length);
+                        byte[] transcoded = transcode(original, targetWidth);
+                        boolean smaller = transcoded != null && transcoded.length < original.length;
+                        byte[] data = smaller ? transcoded : original;
+                        if (isStorable(connection, data.length)) {
+                            store(key, entry.url, connection, original.length,
+                                    smaller ? WEBP : AssetCache.mimeTypeOf(connection.getContentType()), data);
+                        } else {
+                            deleteFiles(key);
+                        }
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Revalidation failed for " + entry.url, e);
+            } finally {
+                synchronized (revalidating) {
+                    revalidating.remove(key);
+                }
+            }
+        });
+    }
+
+    private static HttpURLConnection openConnection(String url, Map<String, String> requestHeaders, Entry validator)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        if (requestHeaders != null) {
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                if ("Accept-Encoding".equalsIgnoreCase(header.getKey())) continue;
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        String cookies = CookieManager.getInstance().getCookie(url);
+        if (cookies != null) connection.setRequestProperty("Cookie", cookies);
+        if (validator != null) {
+            if (validator.etag != null) connection.setRequestProperty("If-None-Match", validator.etag);
+            if (validator.lastModified != null) connection.setRequestProperty("If-Modified-Since", validator.lastModified);
+        }
+        return connection;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static byte[] transcode(byte[] original, int targetWidth) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(original, 0, original.length, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return null;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        // Sample by width only; a tall strip is still shown at the viewport's width
+        options.inSampleSize = ImageCompressor.calculateInSampleSize(bounds.outWidth, 0, targetWidth);
+        Bitmap bitmap = BitmapFactory.decodeByteArray(original, 0, original.length, options);
+        if (bitmap == null) return null;
+        try {
+            if (bitmap.getWidth() > targetWidth) {
+                Bitmap scaled = Bitmap.createScaledBitmap(bitmap, targetWidth,
+                        Math.max(1, Math.round(bitmap.getHeight() * (float) targetWidth / bitmap.getWidth())), true);
+                if (scaled != bitmap) {
+                    bitmap.recycle();
+                    bitmap = scaled;
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Bitmap.CompressFormat format = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                    ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+            bitmap.compress(format, WEBP_QUALITY, out);
+            return out.toByteArray();
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    // --- Disk store ---
+
+    private static boolean isStorable(HttpURLConnection connection, int length) {
+        if (length == 0 || length > MAX_ENTRY_BYTES) return false;
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        return cacheControl == null || !cacheControl.toLowerCase(Locale.US).contains("no-store");
+    }
+
+    private void store(String key, String url, HttpURLConnection connection, long originalBytes, String mimeType,
+                       byte[] data) {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) return;
+        Entry entry = new Entry();
+        entry.url = url;
+        entry.mimeType = mimeType;
+        entry.etag = connection.getHeaderField("ETag");
+        entry.lastModified = connection.getHeaderField("Last-Modified");
+        entry.allowOrigin = connection.getHeaderField("Access-Control-Allow-Origin");
+        entry.storedAt = System.currentTimeMillis();
+        entry.freshnessMs = AssetCache.freshnessOf(connection);
+        entry.originalBytes = originalBytes;
+        // Unique per write: a page load and a revalidation of the same image can overlap
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key, ".tmp", dir);
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(data);
+            }
+            synchronized (this) {
+                if (!tmp.renameTo(bodyFile(key))) throw new IOException("rename failed");
+                entry.write(metaFile(key));
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unable to cache " + url, e);
+            if (tmp != null) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+            return;
+        }
+        if (writesSinceTrim.incrementAndGet() >= TRIM_EVERY_WRITES) {
+            writesSinceTrim.set(0);
+            trim();
+        }
+    }
+
+    private synchronized void touch(String key, Entry entry, HttpURLConnection connection) {
+        entry.storedAt = System.currentTimeMillis();
+        entry.freshnessMs = AssetCache.freshnessOf(connection);
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null) entry.etag = etag;
+        try {
+            entry.write(metaFile(key));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unable to update " + entry.url, e);
+        }
+    }
+
+    private Result openEntry(String key, Entry entry) {
+        File body = bodyFile(key);
+        try {
+            InputStream in = new FileInputStream(body);
+            //noinspection ResultOfMethodCallIgnored
+            body.setLastModified(System.currentTimeMillis());
+            cacheHits.incrementAndGet();
+            Map<String, String> headers = new HashMap<>();
+            if (entry.allowOrigin != null) headers.put("Access-Control-Allow-Origin", entry.allowOrigin);
+            return new Result(imageResponse(entry.mimeType, in, headers), entry.originalBytes, body.length());
+        } catch (IOException e) {
+            deleteFiles(key);
+            return null;
+        }
+    }
+
+    private synchronized void trim() {
+        long abandonedBefore = System.currentTimeMillis() - ABANDONED_TMP_MS;
+        File[] tmpFiles = dir.listFiles((d, name) -> name.endsWith(".tmp"));
+        if (tmpFiles != null) {
+            for (File tmp : tmpFiles) {
+                //noinspection ResultOfMethodCallIgnored
+                if (tmp.lastModified() < abandonedBefore) tmp.delete();
+            }
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".img"));
+        if (files == null) return;
+        long total = 0;
+        for (File file : files) total += file.length();
+        if (total <= MAX_DISK_BYTES) return;
+        List<File> oldestFirst = Arrays.asList(files);
+        Collections.sort(oldestFirst, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : oldestFirst) {
+            if (total <= MAX_DISK_BYTES) break;
+            total -= file.length();
+            deleteFiles(file.getName().substring(0, file.getName().length() - ".img".length()));
+        }
+    }
+
+    private File bodyFile(String key) {
+        return new File(dir, key + ".img");
+    }
+
+    private File metaFile(String key) {
+        return new File(dir, key + ".meta");
+    }
+
+    private void deleteFiles(String key) {
+        //noinspection ResultOfMethodCallIgnored
+        bodyFile(key).delete();
+        //noinspection ResultOfMethodCallIgnored
+        metaFile(key).delete();
+    }
+
+    private static WebResourceResponse imageResponse(String mimeType, InputStream body, Map<String, String> headers) {
+        return new WebResourceResponse(mimeType, null, 200, "OK", headers, body);
+    }
+
+    private static Map<String, String> corsHeaders(HttpURLConnection connection) {
+        Map<String, String> headers = new HashMap<>();
+        String allowOrigin = connection.getHeaderField("Access-Control-Allow-Origin");
+        if (allowOrigin != null) headers.put("Access-Control-Allow-Origin", allowOrigin);
+        return headers;
+    }
+
+    /** What's stored next to each cached image: its type and the original's validators and size. */
+    private static final class Entry {
+        String url;
+        String mimeType;
+        String etag;
+        String lastModified;
+        String allowOrigin;
+        long storedAt;
+        long freshnessMs;
+        long originalBytes;
+
+        void write(File file) throws IOException, JSONException {
+            JSONObject json = new JSONObject()
+                    .put("url", url)
+                    .put("mimeType", mimeType)
+                    .put("etag", etag)
+                    .put("lastModified", lastModified)
+                    .put("allowOrigin", allowOrigin)
+                    .put("storedAt", storedAt)
+                    .put("freshnessMs", freshnessMs)
+                    .put("originalBytes", originalBytes);
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        static Entry read(File file) {
+            if (!file.isFile()) return null;
+            try {
+                JSONObject json = new JSONObject(new String(AssetCache.readFully(new FileInputStream(file)), StandardCharsets.UTF_8));
+                Entry entry = new Entry();
+                entry.url = json.getString("url");
+                entry.mimeType = json.optString("mimeType", WEBP);
+                entry.etag = json.optString("etag", null);
+                entry.lastModified = json.optString("lastModified", null);
+                entry.allowOrigin = json.optString("allowOrigin", null);
+                entry.storedAt = json.getLong("storedAt");
+                entry.freshnessMs = json.getLong("freshnessMs");
+                entry.originalBytes = json.getLong("originalBytes");
+                return entry;
+            } catch (IOException | JSONException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.dealabs.pupchat;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.ConsoleMessage;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps console messages and other diagnostics off the UI thread. {@link #log} only copies
+ * references into a preallocated ring after checking per-level and per-source rate limits;
+ * formatting and file writes happen on a background thread, which appends to a small set of
+ * rotating files in app-private storage, since console text can carry whatever the page
+ * printed. Messages over the limits, or arriving while the ring is full, are dropped and
+ * counted. On in debug builds; {@code -PpupchatDiagnostics=true|false} overrides that.
+ */
+class DiagnosticsLogger {
+
+    private static final String TAG = "PupChatDiagnostics";
+    private static final String FILE_NAME = "diagnostics.log";
+    private static final int RING_CAPACITY = 512;
+    private static final long FLUSH_DELAY_MS = 1000;
+    private static final long MAX_FILE_BYTES = 256 * 1024;
+    private static final int MAX_OLD_FILES = 2;
+    private static final int MAX_MESSAGE_CHARS = 1000;
+    // Sources past this many share one budget, so a page can't grow the map without bound
+    private static final int MAX_SOURCES = 64;
+    private static final double SOURCE_RATE_PER_SEC = 5;
+    private static final double SOURCE_BURST = 20;
+
+    private final File dir;
+    private final Metrics metrics;
+    private final ScheduledExecutorService executor;
+
+    // The ring, guarded by this; slots are reused rather than allocated per message
+    private final long[] times;
+    private final int[] priorities;
+    private final String[] sources;
+    private final int[] lines;
+    private final String[] messages;
+    private int head;
+    private int size;
+    private boolean drainScheduled;
+
+    private final RateLimit[] levelLimits = new RateLimit[Log.ASSERT + 1];
+    private final Map<String, RateLimit> sourceLimits = new HashMap<>();
+    private final RateLimit otherSources = new RateLimit(SOURCE_RATE_PER_SEC, SOURCE_BURST);
+    private long droppedSinceDrain;
+
+    // Where the executor copies the ring to, so formatting doesn't hold the lock
+    private final long[] drainTimes;
+    private final int[] drainPriorities;
+    private final String[] drainSources;
+    private final int[] drainLines;
+    private final String[] drainMessages;
+
+    private final AtomicLong logged = new AtomicLong();
+    private final AtomicLong droppedRateLimited = new AtomicLong();
+    private final AtomicLong droppedOverflow = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    DiagnosticsLogger(File dir, Metrics metrics) {
+        this.dir = dir;
+        this.metrics = metrics;
+        int capacity = BuildConfig.DIAGNOSTICS_ENABLED ? RING_CAPACITY : 0;
+        times = new long[capacity];
+        priorities = new int[capacity];
+        sources = new String[capacity];
+        lines = new int[capacity];
+        messages = new String[capacity];
+        drainTimes = new long[capacity];
+        drainPriorities = new int[capacity];
+        drainSources = new String[capacity];
+        drainLines = new int[capacity];
+        drainMessages = new String[capacity];
+        executor = BuildConfig.DIAGNOSTICS_ENABLED ? Executors.newSingleThreadScheduledExecutor() : null;
+        for (int priority = 0; priority < levelLimits.length; priority++) {
+            // Errors get the most room, they're the ones worth reading afterwards
+            levelLimits[priority] = priority >= Log.ERROR ? new RateLimit(20, 50)
+                    : priority == Log.WARN ? new RateLimit(10, 30)
+                    : new RateLimit(5, 20);
+        }
+    }
+
+    /** Records a message; cheap enough for the UI thread. Priorities are {@link Log} levels. */
+    void log(int priority, String source, int line, String message) {
+        if (!BuildConfig.DIAGNOSTICS_ENABLED) return;
+        long start = System.nanoTime();
+        priority = Math.max(Log.VERBOSE, Math.min(priority, Log.ASSERT));
+        synchronized (this) {
+            RateLimit levelLimit = levelLimits[priority];
+            RateLimit sourceLimit = sourceLimit(source);
+            // Check both before taking from either, so a message one bucket refuses costs the other nothing
+            if (!levelLimit.hasToken(start) || !sourceLimit.hasToken(start)) {
+                droppedSinceDrain++;
+                droppedRateLimited.incrementAndGet();
+            } else if (size == times.length) {
+                droppedSinceDrain++;
+                droppedOverflow.incrementAndGet();
+            } else {
+                levelLimit.take();
+                sourceLimit.take();
+                int slot = (head + size) % times.length;
+                times[slot] = System.currentTimeMillis();
+                priorities[slot] = priority;
+                sources[slot] = source;
+                lines[slot] = line;
+                messages[slot] = message;
+                size++;
+                logged.incrementAndGet();
+            }
+            if (!drainScheduled) {
+                drainScheduled = true;
+                executor.schedule(this::drain, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+        metrics.recordTiming("diagnostics.log_ns", System.nanoTime() - start);
+    }
+
+    void logConsole(ConsoleMessage consoleMessage) {
+        log(priorityOf(consoleMessage.messageLevel()), consoleMessage.sourceId(),
+                consoleMessage.lineNumber(), consoleMessage.message());
+    }
+
+    JSONObject snapshot() throws JSONException {
+        return new JSONObject()
+                .put("enabled", BuildConfig.DIAGNOSTICS_ENABLED)
+                .put("logged", logged.get())
+                .put("written", written.get())
+                .put("droppedRateLimited", droppedRateLimited.get())
+                .put("droppedOverflow", droppedOverflow.get());
+    }
+
+    private RateLimit sourceLimit(String source) {
+        String key = source != null ? source : "";
+        RateLimit limit = sourceLimits.get(key);
+        if (limit == null) {
+            if (sourceLimits.size() >= MAX_SOURCES) return otherSources;
+            limit = new RateLimit(SOURCE_RATE_PER_SEC, SOURCE_BURST);
+            sourceLimits.put(key, limit);
+        }
+        return limit;
+    }
+
+    private static int priorityOf(ConsoleMessage.MessageLevel level) {
+        switch (level) {
+            case ERROR: return Log.ERROR;
+            case WARNING: return Log.WARN;
+            case LOG: return Log.INFO;
+            case DEBUG: return Log.DEBUG;
+            default: return Log.VERBOSE;
+        }
+    }
+
+    // --- Writing, on the executor thread ---
+
+    private void drain() {
+        long start = SystemClock.elapsedRealtime();
+        StringBuilder out = new StringBuilder();
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        int count;
+        long dropped;
+        synchronized (this) {
+            count = size;
+            for (int i = 0; i < count; i++) {
+                int slot = (head + i) % times.length;
+                drainTimes[i] = times[slot];
+                drainPriorities[i] = priorities[slot];
+                drainSources[i] = sources[slot];
+                drainLines[i] = lines[slot];
+                drainMessages[i] = messages[slot];
+                sources[slot] = null;
+                messages[slot] = null;
+            }
+            head = (head + count) % times.length;
+            size = 0;
+            dropped = droppedSinceDrain;
+            droppedSinceDrain = 0;
+            drainScheduled = false;
+        }
+        for (int i = 0; i < count; i++) {
+            String message = drainMessages[i];
+            if (message != null && message.length() > MAX_MESSAGE_CHARS) {
+                message = message.substring(0, MAX_MESSAGE_CHARS) + "…";
+            }
+            int lineStart = out.length();
+            out.append(format.format(new Date(drainTimes[i]))).append(' ')
+                    .append(levelName(drainPriorities[i])).append(' ')
+                    .append(message).append(" -- ").append(drainSources[i]).append(':').append(drainLines[i]);
+            if (BuildConfig.DEBUG) Log.println(drainPriorities[i], TAG, out.substring(lineStart));
+            out.append('\n');
+            // Let the page's strings go as soon as possible
+            drainSources[i] = null;
+            drainMessages[i] = null;
+        }
+        if (dropped > 0) {
+            out.append(format.format(new Date())).append(" W ").append(dropped).append(" messages dropped\n");
+            metrics.add("diagnostics.dropped", dropped);
+        }
+        if (out.length() == 0) return;
+        write(out.toString().getBytes(StandardCharsets.UTF_8));
+        written.addAndGet(count);
+        metrics.recordTiming("diagnostics.drain_ms", SystemClock.elapsedRealtime() - start);
+    }
+
+    private void write(byte[] bytes) {
+        if (dir == null || (!dir.isDirectory() && !dir.mkdirs())) return;
+        File file = new File(dir, FILE_NAME);
+        if (file.length() + bytes.length > MAX_FILE_BYTES) rotate(file);
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write diagnostics", e);
+        }
+    }
+
+    /** diagnostics.log becomes .1, .1 becomes .2, and the oldest is deleted. */
+    private void rotate(File file) {
+        File oldest = new File(dir, FILE_NAME + "." + MAX_OLD_FILES);
+        if (oldest.exists() && !oldest.delete()) Log.w(TAG, "Unable to delete " + oldest);
+        for (int i = MAX_OLD_FILES - 1; i >= 1; i--) {
+            File older = new File(dir, FILE_NAME + "." + i);
+            if (older.exists() && !older.renameTo(new File(dir, FILE_NAME + "." + (i + 1)))) {
+                Log.w(TAG, "Unable to rotate " + older);
+            }
+        }
+        if (!file.renameTo(new File(dir, FILE_NAME + ".1"))) Log.w(TAG, "Unable to rotate " + file);
+    }
+
+    private static char levelName(int priority) {
+        switch (priority) {
+            case Log.ASSERT: return 'A';
+            case Log.ERROR: return 'E';
+            case Log.WARN: return 'W';
+            case Log.INFO: return 'I';
+            case Log.DEBUG: return 'D';
+            default: return 'V';
+        }
+    }
+
+    /** Token bucket; only used under the logger's lock. */
+    private static final class RateLimit {
+        private final double ratePerNs;
+        private final double burst;
+        private double tokens;
+        private long refilledAtNs;
+
+        RateLimit(double ratePerSec, double burst) {
+            this.ratePerNs = ratePerSec / TimeUnit.SECONDS.toNanos(1);
+            this.burst = burst;
+            this.tokens = burst;
+            this.refilledAtNs = System.nanoTime();
+        }
+
+        boolean hasToken(long nowNs) {
+            tokens = Math.min(burst, tokens + (nowNs - refilledAtNs) * ratePerNs);
+            refilledAtNs = nowNs;
+            return tokens >= 1;
+        }
+
+        /** Only after {@link #hasToken} said yes. */
+        void take() {
+            tokens -= 1;
+        }
+    }
+}
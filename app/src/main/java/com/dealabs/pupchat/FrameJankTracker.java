@@ -0,0 +1,84 @@
+package com.dealabs.pupchat;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.FrameMetrics;
+import android.view.Window;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts rendered and janky frames for the window between {@link #start()} and {@link #stop()},
+ * using the platform's per-frame metrics. A frame is janky when it takes longer than one
+ * refresh interval.
+ */
+class FrameJankTracker {
+
+    /** Frame counts for one tracked interval. */
+    static final class Stats {
+        final int frames;
+        final int jankyFrames;
+        final long worstFrameMs;
+
+        Stats(int frames, int jankyFrames, long worstFrameMs) {
+            this.frames = frames;
+            this.jankyFrames = jankyFrames;
+            this.worstFrameMs = worstFrameMs;
+        }
+    }
+
+    private final Window window;
+    private final long frameBudgetNs;
+    private final AtomicInteger frames = new AtomicInteger();
+    private final AtomicInteger jankyFrames = new AtomicInteger();
+    private final AtomicLong worstFrameNs = new AtomicLong();
+    private HandlerThread thread;
+    private volatile boolean active;
+
+    private final Window.OnFrameMetricsAvailableListener listener = (w, frameMetrics, dropCount) -> {
+        if (!active) return;
+        long duration = frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION);
+        frames.incrementAndGet();
+        if (duration > frameBudgetNs) jankyFrames.incrementAndGet();
+        if (duration > worstFrameNs.get()) worstFrameNs.set(duration);
+        // Frames whose metrics were dropped weren't measured; count them as janky to be safe
+        if (dropCount > 0) {
+            frames.addAndGet(dropCount);
+            jankyFrames.addAndGet(dropCount);
+        }
+    };
+
+    FrameJankTracker(Window window) {
+        this.window = window;
+        float refreshRate = window.getWindowManager().getDefaultDisplay().getRefreshRate();
+        this.frameBudgetNs = (long) (1_000_000_000L / (refreshRate > 0 ? refreshRate : 60f));
+    }
+
+    /** Starts a new interval, discarding counts from any previous one. */
+    void start() {
+        if (thread == null) {
+            thread = new HandlerThread("FrameMetrics");
+            thread.start();
+            window.addOnFrameMetricsAvailableListener(listener, new Handler(thread.getLooper()));
+        }
+        frames.set(0);
+        jankyFrames.set(0);
+        worstFrameNs.set(0);
+        active = true;
+    }
+
+    Stats stop() {
+        active = false;
+        return new Stats(frames.get(), jankyFrames.get(), worstFrameNs.get() / 1_000_000L);
+    }
+
+    void release() {
+        active = false;
+        if (thread != null) {
+            window.removeOnFrameMetricsAvailableListener(listener);
+            thread.quitSafely();
+            thread = null;
+        }
+    }
+}
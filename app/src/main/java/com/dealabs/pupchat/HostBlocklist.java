@@ -0,0 +1,155 @@
+package com.dealabs.pupchat;
+
+import android.content.Context;
+import android.util.Log;
+import android.webkit.WebResourceResponse;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Blocks requests to third-party ad and tracker hosts. The list is compiled into a hash set of
+ * host names; a lookup walks the request host's parent domains, so matching costs one hash
+ * probe per label.
+ */
+class HostBlocklist {
+
+    private static final String TAG = "PupChatBlocklist";
+    private static final String ASSET_NAME = "blocklist.txt";
+    private static final int CONNECT_TIMEOUT_MS = 15_000;
+    private static final int READ_TIMEOUT_MS = 20_000;
+
+    private final Context context;
+    private final File overrideFile;
+    private final String siteHost;
+    private volatile Set<String> hosts;
+
+    HostBlocklist(Context context, String siteHost) {
+        this.context = context.getApplicationContext();
+        this.overrideFile = new File(context.getFilesDir(), ASSET_NAME);
+        this.siteHost = siteHost;
+    }
+
+    /** True when the host or one of its parent domains is listed. Loads the list on first use. */
+    boolean isBlocked(String host) {
+        if (host == null) return false;
+        host = host.toLowerCase(Locale.US);
+        // Never block the site itself, whatever the list says
+        if (host.equals(siteHost) || host.endsWith("." + siteHost)) return false;
+
+        return isListed(ensureLoaded(), host);
+    }
+
+    /** True when the lower-case host or one of its parent domains is in the set. */
+    static boolean isListed(Set<String> hosts, String host) {
+        int index = 0;
+        while (index >= 0) {
+            if (hosts.contains(index == 0 ? host : host.substring(index))) return true;
+            int dot = host.indexOf('.', index);
+            index = dot >= 0 ? dot + 1 : -1;
+        }
+        return false;
+    }
+
+    static WebResourceResponse emptyResponse() {
+        return new WebResourceResponse("text/plain", "utf-8", 204, "No Content", null,
+                new ByteArrayInputStream(new byte[0]));
+    }
+
+    int size() {
+        return ensureLoaded().size();
+    }
+
+    /** Loads the list ahead of the first request. */
+    void warmUp() {
+        ensureLoaded();
+    }
+
+    /**
+     * Downloads a replacement list, keeps it in place of the bundled one and switches to it.
+     * Call off the main thread.
+     */
+    void update(String url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            if (overrideFile.isFile()) {
+                connection.setIfModifiedSince(overrideFile.lastModified());
+            }
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) return;
+            byte[] body = AssetCache.readFully(connection.getInputStream());
+            Set<String> compiled = compile(new ByteArrayInputStream(body));
+            if (compiled.isEmpty()) return; // Don't replace a working list with an empty one
+
+            File tmp = new File(overrideFile.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(body);
+            }
+            if (tmp.renameTo(overrideFile)) {
+                hosts = compiled;
+                Log.i(TAG, "Blocklist updated: " + compiled.size() + " hosts");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Blocklist update failed", e);
+        } finally {
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+    private Set<String> ensureLoaded() {
+        Set<String> set = hosts;
+        if (set != null) return set;
+        synchronized (this) {
+            if (hosts == null) {
+                hosts = load();
+            }
+            return hosts;
+        }
+    }
+
+    private Set<String> load() {
+        try (InputStream in = overrideFile.isFile()
+                ? new FileInputStream(overrideFile)
+                : context.getAssets().open(ASSET_NAME)) {
+            Set<String> set = compile(in);
+            Log.d(TAG, "Loaded " + set.size() + " blocked hosts");
+            return set;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to load blocklist", e);
+            return new HashSet<>();
+        }
+    }
+
+    static Set<String> compile(InputStream in) throws IOException {
+        Set<String> set = new HashSet<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) line = line.substring(0, comment);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            // Hosts-file format: "0.0.0.0 example.com"
+            String[] parts = line.split("\\s+");
+            String host = parts[parts.length - 1].toLowerCase(Locale.US);
+            if (host.startsWith("*.")) host = host.substring(2);
+            if (host.indexOf('.') > 0 && !host.equals("localhost")) set.add(host);
+        }
+        return set;
+    }
+}
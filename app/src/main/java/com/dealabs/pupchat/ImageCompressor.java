@@ -0,0 +1,237 @@
+package com.dealabs.pupchat;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.core.content.FileProvider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downscales and re-encodes picked or captured photos off the main thread before they are
+ * handed to the page's file input. Non-image picks, and anything that fails to decode, are
+ * passed through unchanged.
+ */
+class ImageCompressor {
+
+    private static final String TAG = "PupChatImageCompressor";
+    // Compressed copies only need to live until the form has been submitted
+    private static final long OUTPUT_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+
+    interface Callback {
+        void onCompressed(Uri[] results);
+    }
+
+    private final Context context;
+    private final File outputDir;
+    private final int maxEdge;
+    private final int quality;
+    private final boolean webp;
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    ImageCompressor(Context context, File outputDir, int maxEdge, int quality, boolean webp) {
+        this.context = context.getApplicationContext();
+        this.outputDir = outputDir;
+        this.maxEdge = maxEdge;
+        this.quality = quality;
+        this.webp = webp;
+        // Each worker holds a decoded bitmap, so keep the pool small
+        int threads = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /** Processes all inputs in parallel and reports them, in order, on the main thread. */
+    void compressAll(final Uri[] inputs, final Callback callback) {
+        if (inputs == null || inputs.length == 0) {
+            callback.onCompressed(inputs);
+            return;
+        }
+        final Uri[] results = new Uri[inputs.length];
+        final AtomicInteger remaining = new AtomicInteger(inputs.length);
+        executor.execute(this::deleteOldOutputs);
+        for (int i = 0; i < inputs.length; i++) {
+            final int index = i;
+            executor.execute(() -> {
+                Uri result = inputs[index];
+                try {
+                    Uri compressed = compress(inputs[index]);
+                    if (compressed != null) result = compressed;
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Compression failed for " + inputs[index] + ", uploading original", e);
+                }
+                results[index] = result;
+                if (remaining.decrementAndGet() == 0) {
+                    mainHandler.post(() -> callback.onCompressed(results));
+                }
+            });
+        }
+    }
+
+    /** Stops the worker threads once queued photos are done; call when the owner goes away. */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private Uri compress(Uri input) throws IOException {
+        ContentResolver resolver = context.getContentResolver();
+        String type = resolver.getType(input);
+        // GIFs would lose their animation
+        if (type != null && (!type.startsWith("image/") || type.equals("image/gif"))) return null;
+
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream in = resolver.openInputStream(input)) {
+            BitmapFactory.decodeStream(in, null, bounds);
+        }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return null;
+        long originalSize = sizeOf(input);
+        if (Math.max(bounds.outWidth, bounds.outHeight) <= maxEdge && originalSize > 0 && originalSize < 300 * 1024) {
+            return null; // Already small enough
+        }
+
+        int orientation;
+        try (InputStream in = resolver.openInputStream(input)) {
+            orientation = in != null
+                    ? new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)
+                    : ExifInterface.ORIENTATION_NORMAL;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = calculateInSampleSize(bounds.outWidth, bounds.outHeight, maxEdge);
+        Bitmap bitmap;
+        try (InputStream in = resolver.openInputStream(input)) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (bitmap == null) return null;
+
+        bitmap = scaleToMaxEdge(bitmap, maxEdge);
+        if (webp) {
+            // WebP can't carry the EXIF tag here, so bake the rotation into the pixels
+            bitmap = applyOrientation(bitmap, orientation);
+        }
+
+        if (!outputDir.isDirectory() && !outputDir.mkdirs() && !outputDir.isDirectory()) {
+            throw new IOException("Unable to create " + outputDir);
+        }
+        File output = new File(outputDir, "upload_" + System.nanoTime() + (webp ? ".webp" : ".jpg"));
+        try (OutputStream out = new FileOutputStream(output)) {
+            bitmap.compress(compressFormat(), quality, out);
+        } finally {
+            bitmap.recycle();
+        }
+        if (!webp && orientation != ExifInterface.ORIENTATION_NORMAL) {
+            ExifInterface exif = new ExifInterface(output.getPath());
+            exif.setAttribute(ExifInterface.TAG_ORIENTATION, String.valueOf(orientation));
+            exif.saveAttributes();
+        }
+
+        if (originalSize > 0 && output.length() >= originalSize) {
+            //noinspection ResultOfMethodCallIgnored
+            output.delete();
+            return null;
+        }
+        Log.d(TAG, "Compressed " + input + ": " + originalSize + " -> " + output.length() + " bytes");
+        return FileProvider.getUriForFile(context, context.getPackageName() + ".fileprovider", output);
+    }
+
+    @SuppressWarnings("deprecation")
+    private Bitmap.CompressFormat compressFormat() {
+        if (!webp) return Bitmap.CompressFormat.JPEG;
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+
+    private long sizeOf(Uri uri) {
+        try (AssetFileDescriptor fd = context.getContentResolver().openAssetFileDescriptor(uri, "r")) {
+            return fd != null ? fd.getLength() : -1;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private void deleteOldOutputs() {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) return;
+        File[] files = outputDir.listFiles();
+        if (files == null) return;
+        long cutoff = System.currentTimeMillis() - OUTPUT_MAX_AGE_MS;
+        for (File file : files) {
+            if (file.lastModified() < cutoff) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    // --- Bitmap helpers, shared with other image paths ---
+
+    /** Largest power of two that keeps the longer edge at or above {@code maxEdge}. */
+    static int calculateInSampleSize(int width, int height, int maxEdge) {
+        int sampleSize = 1;
+        int longEdge = Math.max(width, height);
+        while (longEdge / (sampleSize * 2) >= maxEdge) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    static Bitmap scaleToMaxEdge(Bitmap bitmap, int maxEdge) {
+        int longEdge = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longEdge <= maxEdge) return bitmap;
+        float scale = (float) maxEdge / longEdge;
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.round(bitmap.getWidth() * scale), Math.round(bitmap.getHeight() * scale), true);
+        if (scaled != bitmap) bitmap.recycle();
+        return scaled;
+    }
+
+    private static Bitmap applyOrientation(Bitmap bitmap, int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(270);
+                matrix.postScale(-1, 1);
+                break;
+            default:
+                return bitmap;
+        }
+        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (rotated != bitmap) bitmap.recycle();
+        return rotated;
+    }
+}
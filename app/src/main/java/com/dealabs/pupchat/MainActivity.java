@@ -2,29 +2,32 @@ package com.dealabs.pupchat;
 
 import android.Manifest;
 import android.app.AlertDialog;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Looper;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
 import android.webkit.ConsoleMessage;
 import android.webkit.GeolocationPermissions;
 import android.webkit.PermissionRequest;
+import android.webkit.RenderProcessGoneDetail;
 import android.webkit.ValueCallback;
 import android.webkit.WebChromeClient;
 import android.webkit.WebResourceError;
 import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -36,36 +39,101 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.core.content.FileProvider;
+import androidx.lifecycle.Lifecycle;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
+import androidx.tracing.Trace;
+
+import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.function.Consumer;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = "PupChatWebView";
-    private static final String BASE_URL = "https://pupchat.infy.uk";
-    private static final String LOGIN_URL_PATH = "/login.php";
-    private static final String HOME_URL_PATH = "/home.php";
+    private static final String BASE_URL = BuildConfig.BASE_URL;
+    private static final String LOGIN_URL_PATH = SessionManager.LOGIN_PATH;
+    private static final String HOME_URL_PATH = SessionManager.HOME_PATH;
+    // Give the home feed a moment to settle before snapshotting it
+    private static final long SNAPSHOT_DELAY_MS = 1500;
+    private static final int MAX_SWAP_STACK = 20;
+    private static final long RELOAD_BACKOFF_BASE_MS = 1000;
+    private static final long RELOAD_BACKOFF_MAX_MS = 60_000;
 
-    private WebView webView;
+    // The WebView on screen; others may be parked in webViewPool. Read from the WebView's IO threads too.
+    private volatile WebView webView;
     private ProgressBar progressBar;
     private TextView tvError;
     private SwipeRefreshLayout swipeRefreshLayout;
+    private FrameLayout webViewContainer;
+    private ImageView ivSnapshot;
+    private AssetCache assetCache;
+    private AssetPack assetPack;
+    private SessionManager sessionManager;
+    private Preconnector preconnector;
+    private DiagnosticsLogger diagnosticsLogger;
+    private RendererRecovery rendererRecovery;
+    private WebViewPool webViewPool;
+    // Pages swapped away from with a link and still parked, most recent first; Back swaps to them again
+    private final ArrayDeque<String> swapStack = new ArrayDeque<>();
+    // Set when Back reloaded an evicted page into the current WebView; its history is dropped
+    // once the load is done, so the next Back doesn't go "back" to the page just left
+    private boolean clearHistoryOnFinish;
+    private boolean prerenderScheduled;
+    // Set when the app went to the background and the WebView's timers were paused
+    private boolean webViewPaused;
+    private HostBlocklist hostBlocklist;
+    private DataSaver dataSaver;
+    private Outbox outbox;
+    private final Outbox.Listener outboxListener = this::onOutboxMessageSent;
+    private UploadEngine uploadEngine;
+    private ChatSearchIndex chatSearchIndex;
+    private final UploadEngine.Listener uploadListener = this::onUploadProgress;
+    private ActivityResultLauncher<Intent> uploadPickerLauncher;
+    private Consumer<Uri[]> uploadPickerCallback;
+    private SyncScheduler syncScheduler;
+    // Host of the page currently in the main frame; native events are only pushed to the site
+    private volatile String mainFrameHost;
+    // Read from the WebView's IO thread when sizing images for data-saver mode
+    private volatile int webViewWidthPx;
+    private Metrics metrics;
+    private StartupSnapshot startupSnapshot;
+    private StartupTrace startupTrace;
+    private StartupScheduler startupScheduler;
+    private NavigationTracker navigationTracker;
+    private FrameJankTracker frameJankTracker;
+    private boolean snapshotCaptured;
+
+    // For reloading a failed page once the network is back
+    private ConnectivityMonitor connectivityMonitor;
+    private final ConnectivityMonitor.Listener connectivityListener = (connected, metered) -> onConnectivityChanged(connected);
+    private final Backoff reloadBackoff = new Backoff(RELOAD_BACKOFF_BASE_MS, RELOAD_BACKOFF_MAX_MS);
+    private final Runnable reloadFailedPage = this::reloadFailedPage;
+    private String failedMainFrameUrl;
+    private boolean mainFrameFailed;
 
     // For file uploads
     private ValueCallback<Uri[]> mUploadMessage;
     private String mCameraPhotoPath;
     private ActivityResultLauncher<Intent> fileChooserLauncher;
+    private boolean fileChooserTraceOpen;
+    // Created after the first paint, or on first use if a chooser opens before that
+    private ImageCompressor imageCompressor;
 
     // For permissions
     private static final int PERMISSION_REQUEST_CODE = 1001;
-    private String[] requestedPermissions;
+    private static final int CAMERA_PERMISSION_REQUEST_CODE = 1002;
+    private static final int NOTIFICATION_PERMISSION_REQUEST_CODE = 1003;
+    private static final String KEY_NOTIFICATION_PERMISSION_ASKED = "notification_permission_asked";
+    private boolean cameraPermissionAsked;
+    private Runnable pendingCameraAction;
     private GeolocationPermissions.Callback geolocationCallback;
     private String geolocationOrigin;
     private PermissionRequest currentPermissionRequest;
@@ -73,49 +141,282 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        // DNS, TCP and TLS setup for the site overlap with inflating the layout and the WebView
+        PupChatApplication app = (PupChatApplication) getApplication();
+        preconnector = app.getPreconnector();
+        preconnector.preconnect();
         setContentView(R.layout.activity_main);
 
-        webView = findViewById(R.id.webView);
         progressBar = findViewById(R.id.progressBar);
         tvError = findViewById(R.id.tvError);
         swipeRefreshLayout = findViewById(R.id.swipeRefreshLayout);
+        webViewContainer = findViewById(R.id.webViewContainer);
+        ivSnapshot = findViewById(R.id.ivSnapshot);
+
+        diagnosticsLogger = app.getDiagnosticsLogger();
+        assetCache = app.getAssetCache();
+        assetPack = app.getAssetPack();
+        sessionManager = app.getSessionManager();
+        hostBlocklist = app.getHostBlocklist();
+        dataSaver = app.getDataSaver();
+        outbox = app.getOutbox();
+        outbox.addListener(outboxListener);
+        uploadEngine = app.getUploadEngine();
+        uploadEngine.addListener(uploadListener);
+        chatSearchIndex = app.getChatSearchIndex();
+        syncScheduler = new SyncScheduler(this);
+        metrics = app.getMetrics();
+        startupSnapshot = app.getStartupSnapshot();
+        startupTrace = new StartupTrace(app.getMetrics());
+        startupScheduler = new StartupScheduler(app.getMetrics());
+        navigationTracker = new NavigationTracker(app.getMetrics());
+        navigationTracker.setTimingListener(
+                (timing, record) -> preconnector.onFirstNavigationTiming(timing, record.startElapsed));
+        frameJankTracker = new FrameJankTracker(getWindow());
+        rendererRecovery = new RendererRecovery(app.getMetrics());
+        rendererRecovery.restoreInstanceState(savedInstanceState);
+        webViewPool = new WebViewPool(this);
+        metrics.addSource("webViewPool", webViewPool::snapshot);
+        connectivityMonitor = app.getConnectivityMonitor();
+        connectivityMonitor.addListener(connectivityListener);
 
-        setupWebView();
         setupSwipeRefreshLayout();
         registerFileChooserLauncher();
+        registerUploadPickerLauncher();
 
-        // Check for initial internet connectivity
-        if (isNetworkAvailable()) {
-            loadInitialUrl();
-        } else {
-            showError(getString(R.string.no_internet_connection));
+        // Show the last home screen right away if we expect to land there again
+        if (sessionManager.isProbablyLoggedIn()) {
+            startupSnapshot.get(bitmap -> {
+                if (webView == null || webView.getVisibility() != View.VISIBLE) {
+                    ivSnapshot.setImageBitmap(bitmap);
+                    ivSnapshot.setVisibility(View.VISIBLE);
+                }
+            });
         }
 
-        // Request permissions on app startup if needed
-        checkAndRequestPermissions();
+        // Build the WebView only after the first frame so the snapshot isn't held up by it
+        startupTrace.onFirstFrame(getWindow().getDecorView(), () ->
+                startupScheduler.run(StartupScheduler.Stage.CRITICAL, "firstLoad", () -> {
+                    createWebView();
+
+                    // Check for initial internet connectivity
+                    if (isNetworkAvailable()) {
+                        // After the process was killed in the background, pick up the old back stack
+                        if (!rendererRecovery.restore(webView)) {
+                            loadInitialUrl();
+                        }
+                    } else {
+                        showError(getString(R.string.no_internet_connection));
+                    }
+                }));
+
+        // Everything else waits for the first page to paint. Camera, microphone and location
+        // permissions are asked for when the page or a file chooser first needs them.
+        startupScheduler.run(StartupScheduler.Stage.AFTER_FIRST_PAINT, "imageCompressor", this::imageCompressor);
+        startupScheduler.run(StartupScheduler.Stage.IDLE, "notificationPermission", this::requestNotificationPermission);
+    }
+
+    private void createWebView() {
+        webView = newWebView();
+    }
+
+    private WebView newWebView() {
+        WebView view = new WebView(this);
+        webViewContainer.addView(view, new FrameLayout.LayoutParams(
+                FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT));
+        setupWebView(view);
+        return view;
     }
 
-    private void setupWebView() {
-        webView.getSettings().setJavaScriptEnabled(true);
-        webView.getSettings().setDomStorageEnabled(true); // For local storage on the website
-        webView.getSettings().setAllowFileAccess(true);
-        webView.getSettings().setAllowContentAccess(true);
-        webView.getSettings().setGeolocationEnabled(true); // Enable geolocation
-        webView.getSettings().setMediaPlaybackRequiresUserGesture(false); // Allow media playback without user interaction
+    private void setupWebView(WebView view) {
+        view.getSettings().setJavaScriptEnabled(true);
+        view.getSettings().setDomStorageEnabled(true); // For local storage on the website
+        view.getSettings().setAllowFileAccess(true);
+        view.getSettings().setAllowContentAccess(true);
+        view.getSettings().setGeolocationEnabled(true); // Enable geolocation
+        view.getSettings().setMediaPlaybackRequiresUserGesture(false); // Allow media playback without user interaction
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            webView.getSettings().setMixedContentMode(android.webkit.WebSettings.MIXED_CONTENT_ALWAYS_ALLOW);
+            view.getSettings().setMixedContentMode(android.webkit.WebSettings.MIXED_CONTENT_ALWAYS_ALLOW);
+        }
+
+        view.setWebViewClient(new CustomWebViewClient());
+        view.setWebChromeClient(new CustomWebChromeClient());
+        view.addJavascriptInterface(navigationTracker.createJsBridge(), NavigationTracker.JS_BRIDGE_NAME);
+        view.addOnLayoutChangeListener((v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) ->
+                webViewWidthPx = right - left);
+        addSiteBridge(view, Outbox.JS_BRIDGE_NAME, outbox.createJsBridge());
+        addSiteBridge(view, ChatSearchIndex.JS_BRIDGE_NAME, chatSearchIndex.createJsBridge());
+        addSiteBridge(view, UploadEngine.JS_BRIDGE_NAME, uploadEngine.createJsBridge(this::pickFilesForUpload));
+    }
+
+    /** Exposes a bridge to frames showing the site only; other origins never see it. */
+    private void addSiteBridge(WebView view, String name, WebMessageBridge.Calls calls) {
+        if (!WebMessageBridge.add(view, name, BASE_URL, calls)) {
+            // An old WebView; the page falls back to doing without
+            Log.w(TAG, "WebView can't limit " + name + " to the site, leaving it out");
+            metrics.increment("bridge.unsupported");
+        }
+    }
+
+    // --- WebView pool ---
+
+    /**
+     * Opens a site link in another WebView, keeping the current page parked in the pool.
+     * Returns false when the link should navigate the current WebView as usual.
+     */
+    private boolean openFromPool(String url) {
+        String currentUrl = webView.getUrl();
+        if (!webViewPool.isEnabled() || currentUrl == null || !url.startsWith(BASE_URL)
+                || url.contains(LOGIN_URL_PATH)
+                || WebViewPool.keyFor(url).equals(WebViewPool.keyFor(currentUrl))) {
+            return false;
+        }
+        WebView previous = webView;
+        WebView next = webViewPool.take(url);
+        boolean hit = next != null;
+        if (!hit) {
+            next = newWebView();
+            next.loadUrl(url);
+        }
+        activate(next, hit);
+        webViewPool.park(currentUrl, previous);
+        swapStack.push(currentUrl);
+        while (swapStack.size() > MAX_SWAP_STACK) swapStack.removeLast();
+        // Parking may have evicted pages further down the stack
+        trimSwapStack();
+        return true;
+    }
+
+    /**
+     * Goes back to the page the last link was opened from. Returns false if there is none.
+     * The page being left isn't parked: there is no Forward, so nothing could swap to it again.
+     */
+    private boolean swapBack() {
+        String url = swapStack.poll();
+        if (url == null) return false;
+        WebView previous = webView;
+        WebView next = webViewPool.take(url);
+        if (next == null) {
+            // Evicted in the meantime; load it here. This view has no history of its own (or
+            // Back would have used it), so dropping the entry being left loses nothing.
+            navigationTracker.onNavigationRequested();
+            clearHistoryOnFinish = true;
+            webView.loadUrl(url);
+            return true;
+        }
+        activate(next, true);
+        webViewContainer.removeView(previous);
+        previous.destroy();
+        return true;
+    }
+
+    /** Drops pages from the swap stack whose parked view is gone, so Back never swaps to nothing. */
+    private void trimSwapStack() {
+        swapStack.removeIf(url -> !webViewPool.contains(url));
+    }
+
+    /**
+     * Makes a WebView the one on screen. A view that is still loading stays hidden, with the
+     * old page showing, until its first paint (see onPageCommitVisible).
+     */
+    private void activate(WebView next, boolean pageReady) {
+        WebView previous = webView;
+        webView = next;
+        next.bringToFront();
+        next.onResume();
+        if (next.getUrl() != null) mainFrameHost = Uri.parse(next.getUrl()).getHost();
+        if (pageReady) {
+            next.setVisibility(View.VISIBLE);
+            if (previous != null && previous != next) previous.setVisibility(View.INVISIBLE);
+            hideLoadingProgress();
+            hideError();
+            metrics.increment("pool.swaps");
+        } else {
+            next.setVisibility(View.INVISIBLE);
+        }
+    }
+
+    private void hideInactiveWebViews() {
+        for (int i = 0; i < webViewContainer.getChildCount(); i++) {
+            View child = webViewContainer.getChildAt(i);
+            if (child != webView) child.setVisibility(View.INVISIBLE);
+        }
+    }
+
+    /** Once the first page is up, loads the most visited pages into parked WebViews while idle. */
+    private void schedulePrerender() {
+        if (prerenderScheduled || !webViewPool.isEnabled()) return;
+        prerenderScheduled = true;
+        Looper.myQueue().addIdleHandler(() -> {
+            prerenderFrequentPages();
+            return false;
+        });
+    }
+
+    private void prerenderFrequentPages() {
+        if (webView == null || connectivityMonitor.isMetered() || !sessionManager.isProbablyLoggedIn()) return;
+        List<String> candidates = new ArrayList<>();
+        candidates.add(BASE_URL + HOME_URL_PATH);
+        candidates.addAll(webViewPool.frequentUrls(webViewPool.getCapacity()));
+        String current = webView.getUrl() != null ? WebViewPool.keyFor(webView.getUrl()) : null;
+        int started = 0;
+        for (String url : candidates) {
+            if (started >= webViewPool.getCapacity()) break;
+            if (url.equals(current) || webViewPool.contains(url) || !url.startsWith(BASE_URL)
+                    || url.contains(LOGIN_URL_PATH)) {
+                continue;
+            }
+            prerender(url);
+            started++;
+        }
+    }
+
+    private void prerender(String url) {
+        WebView view = newWebView();
+        view.setVisibility(View.INVISIBLE);
+        view.loadUrl(url);
+        webViewPool.parkPrerendered(url, view);
+        trimSwapStack();
+    }
+
+    /** The login form went through: get the home page ready. */
+    private void onLoggedIn(String url) {
+        preconnector.onLoggedIn();
+        outbox.onLoggedIn();
+        String home = BASE_URL + HOME_URL_PATH;
+        // The only prefetch of home.php is this prerender. With a pool capacity of 0 (low-RAM
+        // or small-heap devices) nothing is fetched ahead; only the DNS lookup above is saved
+        if (!url.contains(HOME_URL_PATH) && webViewPool.isEnabled() && !webViewPool.contains(home)) {
+            // Landed somewhere else first; home.php is where the user goes next
+            prerender(home);
+            metrics.increment("preconnect.home_prefetched");
         }
+    }
 
-        webView.setWebViewClient(new CustomWebViewClient());
-        webView.setWebChromeClient(new CustomWebChromeClient());
+    /** Drops a parked WebView whose page failed or whose renderer died. */
+    private void discardParked(WebView view) {
+        webViewPool.remove(view);
+        webViewContainer.removeView(view);
+        view.destroy();
+        trimSwapStack();
     }
 
     private void setupSwipeRefreshLayout() {
         if (swipeRefreshLayout != null) {
+            // The direct child is the container, so ask the WebView whether it can still scroll up
+            swipeRefreshLayout.setOnChildScrollUpCallback((parent, child) ->
+                    webView != null && webView.canScrollVertically(-1));
             swipeRefreshLayout.setOnRefreshListener(() -> {
-                if (isNetworkAvailable()) {
-                    webView.reload(); // Reload the current page
+                if (webView == null) {
+                    swipeRefreshLayout.setRefreshing(false);
+                } else if (isNetworkAvailable()) {
+                    if (webView.getUrl() == null) {
+                        loadInitialUrl(); // Fresh WebView after the renderer kept crashing
+                    } else {
+                        navigationTracker.onNavigationRequested();
+                        webView.reload(); // Reload the current page
+                    }
                 } else {
                     swipeRefreshLayout.setRefreshing(false); // Stop refresh animation
                     showError(getString(R.string.no_internet_connection));
@@ -127,6 +428,22 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    private void endFileChooserTrace() {
+        if (!fileChooserTraceOpen) return;
+        fileChooserTraceOpen = false;
+        Trace.endAsyncSection(StartupTrace.SECTION_FILE_CHOOSER, 0);
+    }
+
+    private ImageCompressor imageCompressor() {
+        if (imageCompressor == null) {
+            imageCompressor = new ImageCompressor(this, new File(getCacheDir(), "uploads"),
+                    getResources().getInteger(R.integer.upload_image_max_edge_px),
+                    getResources().getInteger(R.integer.upload_image_quality),
+                    getResources().getBoolean(R.bool.upload_image_webp));
+        }
+        return imageCompressor;
+    }
+
     private void registerFileChooserLauncher() {
         fileChooserLauncher = registerForActivityResult(
                 new ActivityResultContracts.StartActivityForResult(),
@@ -156,68 +473,271 @@ public class MainActivity extends AppCompatActivity {
                             }
                         }
                     }
-                    mUploadMessage.onReceiveValue(results);
+                    // Shrink photos before they reach the page; the callback fires once all are done
+                    final ValueCallback<Uri[]> callback = mUploadMessage;
                     mUploadMessage = null;
                     mCameraPhotoPath = null; // Clear camera path
+                    imageCompressor().compressAll(results, uris -> {
+                        callback.onReceiveValue(uris);
+                        endFileChooserTrace();
+                    });
                 });
     }
 
+    private void registerUploadPickerLauncher() {
+        uploadPickerLauncher = registerForActivityResult(
+                new ActivityResultContracts.StartActivityForResult(),
+                result -> {
+                    Consumer<Uri[]> callback = uploadPickerCallback;
+                    uploadPickerCallback = null;
+                    if (callback == null) return;
+                    Intent data = result.getData();
+                    if (result.getResultCode() != RESULT_OK || data == null) {
+                        callback.accept(null);
+                    } else if (data.getClipData() != null) {
+                        Uri[] uris = new Uri[data.getClipData().getItemCount()];
+                        for (int i = 0; i < uris.length; i++) {
+                            uris[i] = data.getClipData().getItemAt(i).getUri();
+                        }
+                        callback.accept(uris);
+                    } else {
+                        callback.accept(data.getData() != null ? new Uri[]{data.getData()} : null);
+                    }
+                });
+    }
+
+    /** Picker for the upload engine's JS bridge: pick files or record video/audio straight away. */
+    private void pickFilesForUpload(String accept, Consumer<Uri[]> callback) {
+        if (uploadPickerCallback != null) uploadPickerCallback.accept(null);
+        uploadPickerCallback = callback;
+        withCameraPermission(() -> launchUploadPicker(accept));
+    }
+
+    private void launchUploadPicker(String accept) {
+        Intent contentSelectionIntent = new Intent(Intent.ACTION_GET_CONTENT);
+        contentSelectionIntent.addCategory(Intent.CATEGORY_OPENABLE);
+        contentSelectionIntent.setType(accept);
+        contentSelectionIntent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+
+        List<Intent> captureIntents = new ArrayList<>();
+        if ((accept.startsWith("video/") || accept.equals("*/*")) && hasCameraPermission()) {
+            Intent takeVideoIntent = new Intent(MediaStore.ACTION_VIDEO_CAPTURE);
+            if (takeVideoIntent.resolveActivity(getPackageManager()) != null) captureIntents.add(takeVideoIntent);
+        }
+        if (accept.startsWith("audio/") || accept.equals("*/*")) {
+            Intent recordAudioIntent = new Intent(MediaStore.Audio.Media.RECORD_SOUND_ACTION);
+            if (recordAudioIntent.resolveActivity(getPackageManager()) != null) captureIntents.add(recordAudioIntent);
+        }
+
+        Intent chooserIntent = Intent.createChooser(contentSelectionIntent, null);
+        chooserIntent.putExtra(Intent.EXTRA_INITIAL_INTENTS, captureIntents.toArray(new Intent[0]));
+        uploadPickerLauncher.launch(chooserIntent);
+    }
+
     private void loadInitialUrl() {
-        // Check if the user has previously logged in
-        // This is a simple example; you might use SharedPreferences for more robust state management
-        // For now, we'll just check if the URL contains "home.php" which would imply logged in state
-        String lastKnownUrl = getSharedPreferences("app_prefs", MODE_PRIVATE)
-                                .getString("last_url", BASE_URL + LOGIN_URL_PATH);
-
-        if (lastKnownUrl.contains(HOME_URL_PATH) && !lastKnownUrl.contains(LOGIN_URL_PATH)) {
-            webView.loadUrl(BASE_URL + HOME_URL_PATH);
-        } else {
-            webView.loadUrl(BASE_URL + LOGIN_URL_PATH);
+        startupTrace.beginInitialLoad();
+        navigationTracker.onNavigationRequested();
+        webView.loadUrl(sessionManager.firstUrl());
+    }
+
+    private void hideSnapshot() {
+        if (ivSnapshot.getVisibility() == View.VISIBLE) {
+            ivSnapshot.setVisibility(View.GONE);
+            ivSnapshot.setImageDrawable(null);
         }
+        startupSnapshot.release();
+    }
+
+    private void captureSnapshotLater(final String url) {
+        if (snapshotCaptured) return;
+        webView.postDelayed(() -> {
+            if (!snapshotCaptured && url.equals(webView.getUrl()) && webView.getVisibility() == View.VISIBLE) {
+                snapshotCaptured = true;
+                startupSnapshot.capture(webView);
+            }
+        }, SNAPSHOT_DELAY_MS);
     }
 
     private class CustomWebViewClient extends WebViewClient {
         @Override
         public void onPageStarted(WebView view, String url, Bitmap favicon) {
             super.onPageStarted(view, url, favicon);
-            showLoadingSpinner();
+            if (view != webView) return; // Prerendering in the pool
+            boolean newNavigation = navigationTracker.onPageStarted(url);
+            if (newNavigation) {
+                frameJankTracker.start();
+            }
+            sessionManager.onPageStarted(url, newNavigation);
+            mainFrameHost = Uri.parse(url).getHost();
+            mainFrameFailed = false;
+            showLoadingProgress();
             hideError();
-            // Optional: Save the current URL as the last known URL if it's a "home" or "logged in" page
-            if (url.contains(HOME_URL_PATH) || url.contains(LOGIN_URL_PATH)) {
-                 getSharedPreferences("app_prefs", MODE_PRIVATE)
-                        .edit()
-                        .putString("last_url", url)
-                        .apply();
+        }
+
+        @Override
+        public void onPageCommitVisible(WebView view, String url) {
+            super.onPageCommitVisible(view, url);
+            if (view != webView) return;
+            navigationTracker.onPageCommitVisible();
+            // First paint of the new page: reveal it if it was hidden (snapshot showing, or
+            // recovering from an error) and let it replace the snapshot
+            if (!mainFrameFailed && view.getVisibility() != View.VISIBLE) {
+                view.setVisibility(View.VISIBLE);
             }
+            hideInactiveWebViews();
+            hideSnapshot();
+            startupScheduler.onFirstPaint();
         }
 
         @Override
         public void onPageFinished(WebView view, String url) {
             super.onPageFinished(view, url);
-            hideLoadingSpinner();
+            if (view != webView) return;
+            navigationTracker.onFrameStats(frameJankTracker.stop());
+            navigationTracker.onPageFinished(url);
+            startupTrace.endInitialLoad();
+            view.evaluateJavascript(NavigationTracker.TIMING_SCRIPT, null);
+            if (clearHistoryOnFinish) {
+                clearHistoryOnFinish = false;
+                view.clearHistory();
+            }
+            hideLoadingProgress();
+            hideSnapshot();
             if (swipeRefreshLayout != null) {
                 swipeRefreshLayout.setRefreshing(false); // Stop refresh animation
             }
+            if (!mainFrameFailed) {
+                // Loaded fine, so any pending automatic reload is no longer needed
+                failedMainFrameUrl = null;
+                reloadBackoff.reset();
+                webView.removeCallbacks(reloadFailedPage);
+            }
+            if (startupTrace.markInteractive()) {
+                reportFullyDrawn();
+            }
+            if (!mainFrameFailed) {
+                if (sessionManager.onPageFinished(url)) onLoggedIn(url);
+                rendererRecovery.save(view);
+                if (url.startsWith(BASE_URL) && !url.contains(LOGIN_URL_PATH)) {
+                    webViewPool.recordVisit(url);
+                    schedulePrerender();
+                }
+            }
+            rendererRecovery.onPageFinished(view);
+            if (url.contains(HOME_URL_PATH)) {
+                captureSnapshotLater(url);
+            } else if (url.contains(LOGIN_URL_PATH)) {
+                // Logged out; don't flash someone's old home screen on the next start
+                startupSnapshot.clear();
+                // Parked pages belong to the old session
+                webViewPool.destroyAll();
+                swapStack.clear();
+            }
+        }
+
+        @Override
+        public boolean onRenderProcessGone(WebView view, RenderProcessGoneDetail detail) {
+            // Only called on API 26+. Returning true keeps the app alive, but this WebView is dead
+            // and must not be used again.
+            boolean crashed = detail.didCrash();
+            if (view != webView) {
+                // The renderer is shared, so parked views go down with the visible one
+                discardParked(view);
+                return true;
+            }
+            Log.w(TAG, "WebView renderer " + (crashed ? "crashed" : "was killed to free memory"));
+            navigationTracker.onRendererGone();
+            frameJankTracker.stop();
+            rendererRecovery.save(view);
+            webViewContainer.removeView(view);
+            view.destroy();
+
+            webView = null;
+            boolean recover = rendererRecovery.onRendererGone(crashed);
+            createWebView();
+            if (!recover) {
+                showError(getString(R.string.page_crashed));
+            } else if (!rendererRecovery.restore(webView)) {
+                loadInitialUrl();
+            }
+            return true;
         }
 
         @Override
         public void onReceivedError(WebView view, WebResourceRequest request, WebResourceError error) {
             super.onReceivedError(view, request, error);
-            hideLoadingSpinner();
+            if (view != webView) {
+                // Never swap to a parked error page
+                if (request.isForMainFrame()) discardParked(view);
+                return;
+            }
+            navigationTracker.onError(error.getErrorCode(), request.isForMainFrame());
+            if (request.isForMainFrame()) {
+                mainFrameFailed = true;
+                hideLoadingProgress();
+                hideSnapshot();
+                // The error is what gets painted; don't hold back the rest of startup for a page
+                startupScheduler.onFirstPaint();
+            }
             if (swipeRefreshLayout != null) {
                 swipeRefreshLayout.setRefreshing(false);
             }
 
             if (request.isForMainFrame()) {
+                failedMainFrameUrl = request.getUrl().toString();
                 if (!isNetworkAvailable()) {
                     showError(getString(R.string.no_internet_connection));
                 } else {
+                    // Online but still failing (e.g. network not usable yet); retry later
+                    scheduleReload();
                     // Handle specific errors from WebView if necessary
                     showError(getString(R.string.web_page_error) + " Error: " + error.getErrorCode());
                 }
             }
         }
 
+        @Override
+        public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+            // Requests from prerendering pool views are served the same way but not counted
+            boolean tracked = view == webView;
+            if (!request.isForMainFrame()) {
+                if (tracked) navigationTracker.onSubresource();
+
+                // Packed site files never touch the network
+                AssetPack.Result packed = assetPack.intercept(request);
+                if (packed != null) {
+                    if (tracked) navigationTracker.onAssetPackHit(packed.bytes);
+                    return packed.response;
+                }
+
+                long matchStart = System.nanoTime();
+                boolean blocked = hostBlocklist.isBlocked(request.getUrl().getHost());
+                metrics.recordTiming("blocklist.match_ns", System.nanoTime() - matchStart);
+                if (blocked) {
+                    if (tracked) navigationTracker.onBlocked();
+                    return HostBlocklist.emptyResponse();
+                }
+                if (tracked) preconnector.recordHost(request.getUrl().getHost());
+
+                // On metered networks, images are shrunk to the WebView's width
+                DataSaver.Result saved = dataSaver.intercept(request, webViewWidthPx);
+                if (saved != null) {
+                    if (tracked) {
+                        navigationTracker.onDataSaverImage(saved.originalBytes, saved.servedBytes);
+                        saved.response.setData(navigationTracker.countBytes(saved.response.getData()));
+                    }
+                    return saved.response;
+                }
+            }
+            // Static assets come from the disk cache; everything else goes to the network as before
+            WebResourceResponse cached = assetCache.intercept(request);
+            if (cached != null) {
+                if (tracked) cached.setData(navigationTracker.countBytes(cached.getData()));
+                return cached;
+            }
+            return super.shouldInterceptRequest(view, request);
+        }
+
         @Override
         public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest request) {
             // For older APIs, you might need to handle request.getUrl().toString()
@@ -227,19 +747,45 @@ public class MainActivity extends AppCompatActivity {
                 startActivity(intent);
                 return true; // Indicate that the URL is handled
             }
+            // A tap or a script navigating is a new page; a server redirect is part of this one
+            if (view == webView && request.isForMainFrame() && (request.hasGesture() || !request.isRedirect())) {
+                navigationTracker.onNavigationRequested();
+            }
+            // Links the user taps switch WebViews, so the page they leave stays alive for Back
+            if (view == webView && request.hasGesture() && !request.isRedirect()) {
+                return openFromPool(url);
+            }
             return false; // Let WebView handle other URLs
         }
     }
 
     private class CustomWebChromeClient extends WebChromeClient {
+        @Override
+        public void onProgressChanged(WebView view, int newProgress) {
+            super.onProgressChanged(view, newProgress);
+            if (view != webView) return;
+            navigationTracker.onProgressChanged(newProgress);
+            if (progressBar.getVisibility() == View.VISIBLE) {
+                progressBar.setProgress(newProgress, true);
+            }
+        }
+
         // For file uploads (input type="file")
         @Override
         public boolean onShowFileChooser(WebView webView, ValueCallback<Uri[]> filePathCallback, FileChooserParams fileChooserParams) {
             if (mUploadMessage != null) {
                 mUploadMessage.onReceiveValue(null); // Cancel any previous request
+                endFileChooserTrace();
             }
             mUploadMessage = filePathCallback;
+            withCameraPermission(() -> launchFileChooser(fileChooserParams));
+            return true;
+        }
 
+        private void launchFileChooser(FileChooserParams fileChooserParams) {
+            // Starts after the camera permission dialog, so the section is only the chooser round trip
+            fileChooserTraceOpen = true;
+            Trace.beginAsyncSection(StartupTrace.SECTION_FILE_CHOOSER, 0);
             Intent contentSelectionIntent = new Intent(Intent.ACTION_GET_CONTENT);
             contentSelectionIntent.addCategory(Intent.CATEGORY_OPENABLE);
             contentSelectionIntent.setType("*/*"); // Allow all file types
@@ -249,7 +795,7 @@ public class MainActivity extends AppCompatActivity {
             // If the website requests image/video/audio specifically, offer camera/camcorder/microphone
             if (fileChooserParams.getAcceptTypes() != null && fileChooserParams.getAcceptTypes().length > 0) {
                 for (String acceptType : fileChooserParams.getAcceptTypes()) {
-                    if (acceptType.startsWith("image/") || acceptType.equals("*/*")) {
+                    if ((acceptType.startsWith("image/") || acceptType.equals("*/*")) && hasCameraPermission()) {
                         Intent takePhotoIntent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
                         if (takePhotoIntent.resolveActivity(getPackageManager()) != null) {
                             File photoFile = null;
@@ -259,17 +805,20 @@ public class MainActivity extends AppCompatActivity {
                                 Log.e(TAG, "Unable to create Image File", ex);
                             }
                             if (photoFile != null) {
-                                mCameraPhotoPath = FileProvider.getUriForFile(
+                                Uri photoUri = FileProvider.getUriForFile(
                                         MainActivity.this,
                                         getApplicationContext().getPackageName() + ".fileprovider",
                                         photoFile
-                                ).toString();
-                                takePhotoIntent.putExtra(MediaStore.EXTRA_OUTPUT, Uri.fromFile(photoFile));
+                                );
+                                mCameraPhotoPath = photoUri.toString();
+                                // A file:// extra is rejected on API 24+, and the compressor reads the photo back through this URI
+                                takePhotoIntent.putExtra(MediaStore.EXTRA_OUTPUT, photoUri);
+                                takePhotoIntent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION | Intent.FLAG_GRANT_READ_URI_PERMISSION);
                                 intentArray.add(takePhotoIntent);
                             }
                         }
                     }
-                    if (acceptType.startsWith("video/") || acceptType.equals("*/*")) {
+                    if ((acceptType.startsWith("video/") || acceptType.equals("*/*")) && hasCameraPermission()) {
                         Intent takeVideoIntent = new Intent(MediaStore.ACTION_VIDEO_CAPTURE);
                         if (takeVideoIntent.resolveActivity(getPackageManager()) != null) {
                             intentArray.add(takeVideoIntent);
@@ -290,7 +839,6 @@ public class MainActivity extends AppCompatActivity {
             chooserIntent.putExtra(Intent.EXTRA_INITIAL_INTENTS, intentArray.toArray(new Intent[0]));
 
             fileChooserLauncher.launch(chooserIntent);
-            return true;
         }
 
         // For Geolocation Permissions
@@ -324,10 +872,12 @@ public class MainActivity extends AppCompatActivity {
             }
 
             if (!neededPermissions.isEmpty()) {
+                // Asked for here, the first time the page wants the camera or microphone
                 currentPermissionRequest = request; // Store the request
-                // Convert list to array
-                requestedPermissions = neededPermissions.toArray(new String[0]);
-                checkAndRequestPermissions(); // Use your existing permission check/request logic
+                if (!requestMissingPermissions(neededPermissions.toArray(new String[0]))) {
+                    currentPermissionRequest = null;
+                    request.grant(request.getResources()); // Granted earlier
+                }
             } else {
                 request.deny(); // Deny if no specific Android permission is mapped
             }
@@ -341,63 +891,70 @@ public class MainActivity extends AppCompatActivity {
 
         @Override
         public boolean onConsoleMessage(ConsoleMessage consoleMessage) {
-            Log.d(TAG, consoleMessage.message() + " -- From line " + consoleMessage.lineNumber() + " of " + consoleMessage.sourceId());
+            diagnosticsLogger.logConsole(consoleMessage);
             return true; // Consume the message
         }
     }
 
     // --- Permission Handling ---
-    private void checkAndRequestPermissions() {
-        List<String> permissionsToRequest = new ArrayList<>();
 
-        // General permissions for file upload, audio, location
-        if (ContextCompat.checkSelfPermission(this, Manifest.permission.READ_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
-            permissionsToRequest.add(Manifest.permission.READ_EXTERNAL_STORAGE);
-        }
-        if (ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
-            permissionsToRequest.add(Manifest.permission.WRITE_EXTERNAL_STORAGE);
-        }
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
-                ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_MEDIA_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            permissionsToRequest.add(Manifest.permission.ACCESS_MEDIA_LOCATION);
-        }
-        if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
-            permissionsToRequest.add(Manifest.permission.RECORD_AUDIO);
-        }
-        if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            permissionsToRequest.add(Manifest.permission.ACCESS_FINE_LOCATION);
-        }
-        if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            permissionsToRequest.add(Manifest.permission.ACCESS_COARSE_LOCATION);
-        }
-        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-            permissionsToRequest.add(Manifest.permission.CAMERA);
+    /** Asks for whichever of the permissions aren't granted yet; returns false if all are. */
+    private boolean requestMissingPermissions(String... permissions) {
+        List<String> permissionsToRequest = new ArrayList<>();
+        for (String permission : permissions) {
+            if (ContextCompat.checkSelfPermission(this, permission) != PackageManager.PERMISSION_GRANTED) {
+                permissionsToRequest.add(permission);
+            }
         }
+        if (permissionsToRequest.isEmpty()) return false;
+        ActivityCompat.requestPermissions(this,
+                permissionsToRequest.toArray(new String[0]),
+                PERMISSION_REQUEST_CODE);
+        return true;
+    }
 
+    private boolean hasCameraPermission() {
+        return ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED;
+    }
 
-        // Add permissions requested by WebChromeClient's onPermissionRequest
-        if (requestedPermissions != null) {
-            for (String perm : requestedPermissions) {
-                if (ContextCompat.checkSelfPermission(this, perm) != PackageManager.PERMISSION_GRANTED) {
-                    permissionsToRequest.add(perm);
-                }
-            }
-            requestedPermissions = null; // Clear after adding
+    /**
+     * Runs the action once the user has been asked for the camera, so choosers can offer photo
+     * and video capture. Asked at most once per activity; without it the action still runs,
+     * just without the capture options.
+     */
+    private void withCameraPermission(Runnable action) {
+        if (hasCameraPermission() || cameraPermissionAsked) {
+            action.run();
+            return;
         }
+        cameraPermissionAsked = true;
+        pendingCameraAction = action;
+        ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.CAMERA}, CAMERA_PERMISSION_REQUEST_CODE);
+    }
 
-
-        if (!permissionsToRequest.isEmpty()) {
-            ActivityCompat.requestPermissions(this,
-                    permissionsToRequest.toArray(new String[0]),
-                    PERMISSION_REQUEST_CODE);
+    /** Asks once, after startup has settled, whether new-message notifications may be shown. */
+    private void requestNotificationPermission() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU || !sessionManager.isProbablyLoggedIn()) return;
+        if (!SyncScheduler.isEnabled()) return; // Sync is the only thing that notifies
+        SharedPreferences prefs = getPreferences(MODE_PRIVATE);
+        if (prefs.getBoolean(KEY_NOTIFICATION_PERMISSION_ASKED, false)) return;
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS) == PackageManager.PERMISSION_GRANTED) {
+            return;
         }
+        prefs.edit().putBoolean(KEY_NOTIFICATION_PERMISSION_ASKED, true).apply();
+        ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.POST_NOTIFICATIONS},
+                NOTIFICATION_PERMISSION_REQUEST_CODE);
     }
 
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
 
-        if (requestCode == PERMISSION_REQUEST_CODE) {
+        if (requestCode == CAMERA_PERMISSION_REQUEST_CODE) {
+            Runnable action = pendingCameraAction;
+            pendingCameraAction = null;
+            if (action != null) action.run();
+        } else if (requestCode == PERMISSION_REQUEST_CODE) {
             boolean allGranted = true;
             for (int result : grantResults) {
                 if (result != PackageManager.PERMISSION_GRANTED) {
@@ -446,7 +1003,7 @@ public class MainActivity extends AppCompatActivity {
                     new AlertDialog.Builder(this)
                             .setTitle("Permission Needed")
                             .setMessage(getString(R.string.grant_permissions_message))
-                            .setPositiveButton("Grant", (dialog, which) -> checkAndRequestPermissions())
+                            .setPositiveButton("Grant", (dialog, which) -> requestMissingPermissions(permissions))
                             .setNegativeButton("Cancel", (dialog, which) -> dialog.dismiss())
                             .create()
                             .show();
@@ -466,29 +1023,89 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private boolean isNetworkAvailable() {
-        ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-        if (connectivityManager != null) {
-            NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
-            return activeNetworkInfo != null && activeNetworkInfo.isConnected();
+        // Cached by the network callback, so this is cheap on the UI thread
+        return connectivityMonitor.isConnected();
+    }
+
+    private void onUploadProgress(JSONObject event) {
+        // The event is JSON built natively, so it is safe to inline as a JS object literal
+        if (webView != null && isSitePageShowing()) {
+            webView.evaluateJavascript("window.onPupChatUpload && window.onPupChatUpload(" + event + ");", null);
+        }
+    }
+
+    /** Native events are evaluated in the main frame, so they only go to a site page. */
+    private boolean isSitePageShowing() {
+        String host = mainFrameHost;
+        return host != null && host.equalsIgnoreCase(Uri.parse(BASE_URL).getHost());
+    }
+
+    private void onOutboxMessageSent(String idempotencyKey) {
+        // Let the page swap its "pending" bubble for a sent one; the key is a UUID, safe to inline
+        if (webView != null && isSitePageShowing()) {
+            webView.evaluateJavascript("window.onPupChatOutboxSent && window.onPupChatOutboxSent('"
+                    + idempotencyKey + "');", null);
+        }
+    }
+
+    // --- Automatic reload ---
+    private void onConnectivityChanged(boolean connected) {
+        if (webView == null) return;
+        if (connected) {
+            if (failedMainFrameUrl != null) {
+                reloadBackoff.reset();
+                scheduleReload();
+            } else if (webView.getUrl() == null) {
+                // Started offline, so nothing was ever loaded
+                loadInitialUrl();
+            }
+        } else {
+            webView.removeCallbacks(reloadFailedPage);
         }
-        return false;
     }
 
-    private void showLoadingSpinner() {
+    private void scheduleReload() {
+        if (webView == null || failedMainFrameUrl == null || !isNetworkAvailable()) return;
+        long delay = reloadBackoff.nextDelayMs();
+        Log.d(TAG, "Reloading " + failedMainFrameUrl + " in " + delay + " ms (attempt " + reloadBackoff.getAttempts() + ")");
+        webView.removeCallbacks(reloadFailedPage);
+        webView.postDelayed(reloadFailedPage, delay);
+    }
+
+    private void reloadFailedPage() {
+        if (failedMainFrameUrl != null && isNetworkAvailable()) {
+            navigationTracker.onNavigationRequested();
+            webView.loadUrl(failedMainFrameUrl);
+        }
+    }
+
+    private void showLoadingProgress() {
+        // The previous page stays on screen until the new one commits, so there's no blank flash
+        progressBar.setProgress(0);
         progressBar.setVisibility(View.VISIBLE);
-        webView.setVisibility(View.GONE); // Hide WebView while loading
+        if (ivSnapshot.getVisibility() == View.VISIBLE) {
+            // The snapshot already covers the screen. INVISIBLE rather than GONE so the WebView
+            // keeps drawing and onPageCommitVisible fires to swap it in.
+            webView.setVisibility(View.INVISIBLE);
+        }
         tvError.setVisibility(View.GONE);
     }
 
-    private void hideLoadingSpinner() {
+    private void hideLoadingProgress() {
         progressBar.setVisibility(View.GONE);
-        webView.setVisibility(View.VISIBLE); // Show WebView when loaded
+        // Normally revealed at onPageCommitVisible already; this covers loads that never commit a frame
+        if (!mainFrameFailed && webView.getVisibility() != View.VISIBLE) {
+            webView.setVisibility(View.VISIBLE);
+        }
     }
 
     private void showError(String message) {
         tvError.setText(message);
         tvError.setVisibility(View.VISIBLE);
-        webView.setVisibility(View.GONE); // Hide WebView on error
+        if (webView != null) {
+            webView.setVisibility(View.GONE); // Hide WebView on error
+        }
+        hideSnapshot();
         progressBar.setVisibility(View.GONE);
     }
 
@@ -497,11 +1114,85 @@ public class MainActivity extends AppCompatActivity {
         // Don't show WebView yet, as it might still be loading
     }
 
+    @Override
+    protected void onDestroy() {
+        startupScheduler.cancel();
+        connectivityMonitor.removeListener(connectivityListener);
+        outbox.removeListener(outboxListener);
+        uploadEngine.removeListener(uploadListener);
+        if (imageCompressor != null) imageCompressor.shutdown();
+        frameJankTracker.release();
+        webViewPool.destroyAll();
+        if (webView != null) {
+            webView.removeCallbacks(reloadFailedPage);
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    protected void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (webView != null) rendererRecovery.save(webView);
+        rendererRecovery.saveInstanceState(outState);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Parked pages are the cheapest thing to give back
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            webViewPool.trimTo(0);
+        } else if (level == TRIM_MEMORY_RUNNING_LOW) {
+            webViewPool.trimTo(webViewPool.getCapacity() / 2);
+        }
+        trimSwapStack();
+        if (webView == null) return;
+        if (level >= TRIM_MEMORY_UI_HIDDEN && !webViewPaused) {
+            // Nothing on screen: stop the page's JS timers and animations until we're back
+            webView.onPause();
+            webView.pauseTimers();
+            webViewPaused = true;
+        }
+        if (level == TRIM_MEMORY_RUNNING_CRITICAL || level >= TRIM_MEMORY_MODERATE) {
+            // Only the in-memory resource cache; the disk cache is cheap to keep
+            webView.clearCache(false);
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (webViewPaused && webView != null) {
+            webView.onResume();
+            webView.resumeTimers();
+        }
+        webViewPaused = false;
+        // The live page shows new messages; no need to poll in the background. WorkManager's
+        // first use is slow, so on a cold start this waits until the page has painted.
+        startupScheduler.run(StartupScheduler.Stage.AFTER_FIRST_PAINT, "syncForeground", () -> {
+            if (getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED)) {
+                syncScheduler.onAppForeground();
+            }
+        });
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        syncScheduler.onAppBackground();
+        sessionManager.persistNow();
+        webViewPool.persist();
+        preconnector.persist();
+        Log.d(TAG, "Asset cache: " + assetCache.describeStats());
+        ((PupChatApplication) getApplication()).exportMetrics();
+    }
+
     @Override
     public void onBackPressed() {
-        if (webView.canGoBack()) {
+        if (webView != null && webView.canGoBack()) {
+            navigationTracker.onNavigationRequested();
             webView.goBack();
-        } else {
+        } else if (webView == null || !swapBack()) {
             super.onBackPressed();
         }
     }
@@ -0,0 +1,141 @@
+package com.dealabs.pupchat;
+
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In-memory performance metrics: named counters, named timing distributions (p50/p95/p99) and
+ * the most recent navigation records. Everything can be written out as one JSON file so runs on
+ * real devices can be compared between releases.
+ */
+class Metrics {
+
+    private static final String TAG = "PupChatMetrics";
+    private static final int TIMING_CAPACITY = 256;
+    private static final int NAVIGATION_CAPACITY = 64;
+
+    /** Contributes a component's own stats to the export. */
+    interface Source {
+        JSONObject snapshot() throws JSONException;
+    }
+
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, SampleRing> timings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Source> sources = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<NavigationRecord> navigations = new AtomicReferenceArray<>(NAVIGATION_CAPACITY);
+    private final AtomicLong navigationCount = new AtomicLong();
+
+    void increment(String name) {
+        add(name, 1);
+    }
+
+    void add(String name, long delta) {
+        counter(name).addAndGet(delta);
+    }
+
+    /** For gauges such as queue depth, where only the latest value matters. */
+    void set(String name, long value) {
+        counter(name).set(value);
+    }
+
+    long get(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter != null ? counter.get() : 0;
+    }
+
+    void recordTiming(String name, long value) {
+        SampleRing ring = timings.get(name);
+        if (ring == null) {
+            SampleRing created = new SampleRing(TIMING_CAPACITY);
+            ring = timings.putIfAbsent(name, created);
+            if (ring == null) ring = created;
+        }
+        ring.add(value);
+    }
+
+    void recordNavigation(NavigationRecord record) {
+        long index = navigationCount.getAndIncrement();
+        navigations.set((int) (index % NAVIGATION_CAPACITY), record);
+    }
+
+    void addSource(String name, Source source) {
+        sources.put(name, source);
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject()
+                .put("versionName", BuildConfig.VERSION_NAME)
+                .put("versionCode", BuildConfig.VERSION_CODE)
+                .put("device", Build.MANUFACTURER + " " + Build.MODEL)
+                .put("sdk", Build.VERSION.SDK_INT)
+                .put("exportedAt", System.currentTimeMillis());
+
+        JSONObject counterJson = new JSONObject();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            counterJson.put(counter.getKey(), counter.getValue().get());
+        }
+        json.put("counters", counterJson);
+
+        JSONObject timingJson = new JSONObject();
+        for (Map.Entry<String, SampleRing> timing : timings.entrySet()) {
+            long[] sorted = timing.getValue().sortedSnapshot();
+            timingJson.put(timing.getKey(), new JSONObject()
+                    .put("count", timing.getValue().getCount())
+                    .put("p50", SampleRing.percentile(sorted, 50))
+                    .put("p95", SampleRing.percentile(sorted, 95))
+                    .put("p99", SampleRing.percentile(sorted, 99)));
+        }
+        json.put("timings", timingJson);
+
+        JSONArray navigationJson = new JSONArray();
+        long total = navigationCount.get();
+        for (long i = Math.max(0, total - NAVIGATION_CAPACITY); i < total; i++) {
+            NavigationRecord record = navigations.get((int) (i % NAVIGATION_CAPACITY));
+            if (record != null) navigationJson.put(record.toJson());
+        }
+        json.put("navigations", navigationJson);
+
+        for (Map.Entry<String, Source> source : sources.entrySet()) {
+            json.put(source.getKey(), source.getValue().snapshot());
+        }
+        return json;
+    }
+
+    /** Writes the current metrics to {@code metrics.json} in the given directory. Call off the main thread. */
+    File exportTo(File dir) {
+        if (dir == null || (!dir.isDirectory() && !dir.mkdirs())) return null;
+        File file = new File(dir, "metrics.json");
+        File tmp = new File(dir, "metrics.json.tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(toJson().toString(2).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unable to export metrics", e);
+            return null;
+        }
+        return tmp.renameTo(file) ? file : null;
+    }
+
+    private AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) counter = created;
+        }
+        return counter;
+    }
+}
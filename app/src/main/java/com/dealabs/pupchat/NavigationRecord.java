@@ -0,0 +1,72 @@
+package com.dealabs.pupchat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Timings and counts for one main-frame navigation. Offsets are milliseconds from start. */
+class NavigationRecord {
+
+    final long startedAt = System.currentTimeMillis();
+    final long startElapsed;
+    volatile String url;
+    volatile int redirects;
+    // The user (or the app) started another navigation before this one finished
+    volatile boolean abandoned;
+    volatile long firstProgressMs = -1;
+    volatile long commitVisibleMs = -1;
+    volatile long finishMs = -1;
+    volatile JSONObject jsTiming;
+    final AtomicInteger subresourceCount = new AtomicInteger();
+    final AtomicLong subresourceBytes = new AtomicLong();
+    final AtomicInteger blockedRequests = new AtomicInteger();
+    final AtomicLong dataSaverBytesIn = new AtomicLong();
+    final AtomicLong dataSaverBytesOut = new AtomicLong();
+    final AtomicInteger assetPackHits = new AtomicInteger();
+    final AtomicLong assetPackBytes = new AtomicLong();
+    volatile int frames;
+    volatile int jankyFrames;
+    volatile long worstFrameMs;
+    private final List<Integer> errorCodes = new ArrayList<>();
+
+    NavigationRecord(String url, long startElapsed) {
+        this.url = url;
+        this.startElapsed = startElapsed;
+    }
+
+    synchronized void addError(int code) {
+        errorCodes.add(code);
+    }
+
+    synchronized boolean hasErrors() {
+        return !errorCodes.isEmpty();
+    }
+
+    synchronized JSONObject toJson() throws JSONException {
+        return new JSONObject()
+                .put("url", url)
+                .put("startedAt", startedAt)
+                .put("redirects", redirects)
+                .put("abandoned", abandoned)
+                .put("firstProgressMs", firstProgressMs)
+                .put("commitVisibleMs", commitVisibleMs)
+                .put("finishMs", finishMs)
+                .put("subresources", subresourceCount.get())
+                .put("subresourceBytes", subresourceBytes.get())
+                .put("blockedRequests", blockedRequests.get())
+                .put("dataSaverBytesIn", dataSaverBytesIn.get())
+                .put("dataSaverBytesOut", dataSaverBytesOut.get())
+                .put("assetPackHits", assetPackHits.get())
+                .put("assetPackBytes", assetPackBytes.get())
+                .put("frames", frames)
+                .put("jankyFrames", jankyFrames)
+                .put("worstFrameMs", worstFrameMs)
+                .put("errors", new JSONArray(errorCodes))
+                .put("jsTiming", jsTiming != null ? jsTiming : JSONObject.NULL);
+    }
+}
@@ -0,0 +1,258 @@
+package com.dealabs.pupchat;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.JavascriptInterface;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Follows main-frame navigations through the WebView callbacks and publishes one
+ * {@link NavigationRecord} per navigation to {@link Metrics}. Callbacks arrive on the main
+ * thread, subresource counts on the WebView's IO threads and JS timings on the bridge thread.
+ */
+class NavigationTracker {
+
+    private static final String TAG = "PupChatNavigation";
+    static final String JS_BRIDGE_NAME = "PupChatPerf";
+    // Recorded alongside WebViewClient.ERROR_* codes, which are all small negatives
+    static final int ERROR_RENDERER_GONE = -100;
+
+    // Reports Navigation Timing once the load event has completed
+    static final String TIMING_SCRIPT = "(function(){"
+            + "function report(){"
+            + "var n=performance.getEntriesByType&&performance.getEntriesByType('navigation')[0];"
+            + "var t=performance.timing;"
+            + "var d=n?{type:n.type,dns:n.domainLookupEnd-n.domainLookupStart,connect:n.connectEnd-n.connectStart,"
+            + "ttfb:n.responseStart-n.requestStart,response:n.responseEnd-n.responseStart,"
+            + "domInteractive:n.domInteractive,domContentLoaded:n.domContentLoadedEventEnd,loadEvent:n.loadEventEnd,"
+            + "transferSize:n.transferSize}"
+            + ":{dns:t.domainLookupEnd-t.domainLookupStart,connect:t.connectEnd-t.connectStart,"
+            + "ttfb:t.responseStart-t.requestStart,response:t.responseEnd-t.responseStart,"
+            + "domInteractive:t.domInteractive-t.navigationStart,domContentLoaded:t.domContentLoadedEventEnd-t.navigationStart,"
+            + "loadEvent:t.loadEventEnd-t.navigationStart};"
+            + "d.url=location.href;" + JS_BRIDGE_NAME + ".reportNavigationTiming(JSON.stringify(d));}"
+            + "if(document.readyState==='complete'&&performance.timing.loadEventEnd>0){report();}"
+            + "else{window.addEventListener('load',function(){setTimeout(report,0);});}"
+            + "})();";
+
+    interface TimingListener {
+        /** Called on the JS bridge thread with a finished navigation's Navigation Timing. */
+        void onNavigationTiming(JSONObject timing, NavigationRecord record);
+    }
+
+    private final Metrics metrics;
+    private volatile TimingListener timingListener;
+    private volatile NavigationRecord current;
+    private volatile NavigationRecord lastFinished;
+    // Set by a link tap, loadUrl, reload or back; the next page start can't be a redirect
+    private boolean navigationRequested;
+
+    NavigationTracker(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * The user or the app asked for a new main-frame navigation. Main thread only, like
+     * {@link #onPageStarted}.
+     */
+    void onNavigationRequested() {
+        navigationRequested = true;
+    }
+
+    /** Returns false when this is a redirect within a navigation that is already being tracked. */
+    boolean onPageStarted(String url) {
+        NavigationRecord record = current;
+        boolean requested = navigationRequested;
+        navigationRequested = false;
+        if (record != null && record.finishMs < 0) {
+            if (!requested) {
+                // Nothing asked for a new page since the last start, so the server redirected
+                record.url = url;
+                record.redirects++;
+                return false;
+            }
+            // Left before it finished; keep the record, but out of the load-time stats
+            record.abandoned = true;
+            record.finishMs = sinceStart(record);
+            metrics.recordNavigation(record);
+            metrics.increment("nav.abandoned");
+        }
+        current = new NavigationRecord(url, SystemClock.elapsedRealtime());
+        metrics.increment("nav.started");
+        return true;
+    }
+
+    void onProgressChanged(int progress) {
+        NavigationRecord record = current;
+        if (record != null && progress > 0 && record.firstProgressMs < 0) {
+            record.firstProgressMs = sinceStart(record);
+        }
+    }
+
+    void onPageCommitVisible() {
+        NavigationRecord record = current;
+        if (record != null && record.commitVisibleMs < 0) {
+            record.commitVisibleMs = sinceStart(record);
+        }
+    }
+
+    void onPageFinished(String url) {
+        NavigationRecord record = current;
+        if (record == null || record.finishMs >= 0) return;
+        record.url = url;
+        record.finishMs = sinceStart(record);
+        metrics.recordNavigation(record);
+        lastFinished = record;
+
+        if (record.hasErrors()) {
+            metrics.increment("nav.failed");
+            return;
+        }
+        metrics.increment("nav.finished");
+        if (record.firstProgressMs >= 0) metrics.recordTiming("nav.first_progress_ms", record.firstProgressMs);
+        if (record.commitVisibleMs >= 0) metrics.recordTiming("nav.commit_visible_ms", record.commitVisibleMs);
+        metrics.recordTiming("nav.finish_ms", record.finishMs);
+        metrics.recordTiming("nav.subresources", record.subresourceCount.get());
+        metrics.recordTiming("nav.subresource_bytes", record.subresourceBytes.get());
+        metrics.recordTiming("nav.blocked_requests", record.blockedRequests.get());
+        if (record.blockedRequests.get() > 0) {
+            Log.d(TAG, "Blocked " + record.blockedRequests.get() + " requests on " + url);
+        }
+        if (record.dataSaverBytesIn.get() > 0) {
+            metrics.recordTiming("nav.data_saver_bytes_in", record.dataSaverBytesIn.get());
+            metrics.recordTiming("nav.data_saver_bytes_out", record.dataSaverBytesOut.get());
+            Log.d(TAG, "Data saver on " + url + ": " + record.dataSaverBytesIn.get()
+                    + " -> " + record.dataSaverBytesOut.get() + " bytes");
+        }
+        if (record.assetPackHits.get() > 0) {
+            metrics.recordTiming("nav.asset_pack_hits", record.assetPackHits.get());
+            metrics.recordTiming("nav.asset_pack_bytes", record.assetPackBytes.get());
+        }
+    }
+
+    /** Frame counts for the navigation in progress; call before {@link #onPageFinished}. */
+    void onFrameStats(FrameJankTracker.Stats stats) {
+        NavigationRecord record = current;
+        if (record == null || record.finishMs >= 0) return;
+        record.frames = stats.frames;
+        record.jankyFrames = stats.jankyFrames;
+        record.worstFrameMs = stats.worstFrameMs;
+        if (stats.frames > 0) {
+            metrics.recordTiming("nav.janky_frames", stats.jankyFrames);
+            metrics.recordTiming("nav.jank_percent", stats.jankyFrames * 100L / stats.frames);
+            metrics.recordTiming("nav.worst_frame_ms", stats.worstFrameMs);
+        }
+    }
+
+    void onError(int errorCode, boolean mainFrame) {
+        metrics.increment(mainFrame ? "nav.main_frame_errors" : "nav.subresource_errors");
+        NavigationRecord record = current;
+        if (record != null) record.addError(errorCode);
+    }
+
+    /** Closes the navigation in progress when its renderer died under it. */
+    void onRendererGone() {
+        NavigationRecord record = current;
+        if (record == null || record.finishMs >= 0) return;
+        record.addError(ERROR_RENDERER_GONE);
+        onPageFinished(record.url);
+    }
+
+    /** Counts a subresource request; called from shouldInterceptRequest. */
+    void onSubresource() {
+        NavigationRecord record = current;
+        if (record != null) record.subresourceCount.incrementAndGet();
+    }
+
+    /** Counts a request that the blocklist answered with an empty response. */
+    void onBlocked() {
+        metrics.increment("blocklist.blocked");
+        NavigationRecord record = current;
+        // Blocked bodies are never downloaded, so only the count is known, not the bytes saved
+        if (record != null) record.blockedRequests.incrementAndGet();
+    }
+
+    /**
+     * Records an image served by data-saver mode. For a cached image originalBytes is the
+     * original's size when it was stored, so in and out compare the page with and without
+     * data saver rather than what crossed the network.
+     */
+    void onDataSaverImage(long originalBytes, long servedBytes) {
+        metrics.add("dataSaver.bytes_in", originalBytes);
+        metrics.add("dataSaver.bytes_out", servedBytes);
+        NavigationRecord record = current;
+        if (record != null) {
+            record.dataSaverBytesIn.addAndGet(originalBytes);
+            record.dataSaverBytesOut.addAndGet(servedBytes);
+        }
+    }
+
+    /** Records a site file served from the bundled asset pack instead of the network. */
+    void onAssetPackHit(long bytes) {
+        metrics.increment("assetPack.hits");
+        metrics.add("assetPack.bytes", bytes);
+        NavigationRecord record = current;
+        if (record != null) {
+            record.assetPackHits.incrementAndGet();
+            record.assetPackBytes.addAndGet(bytes);
+        }
+    }
+
+    /** Wraps an intercepted response body so the bytes the WebView reads are counted. */
+    InputStream countBytes(InputStream in) {
+        final NavigationRecord record = current;
+        if (in == null || record == null) return in;
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) record.subresourceBytes.incrementAndGet();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int read = super.read(buffer, offset, count);
+                if (read > 0) record.subresourceBytes.addAndGet(read);
+                return read;
+            }
+        };
+    }
+
+    void setTimingListener(TimingListener listener) {
+        timingListener = listener;
+    }
+
+    Object createJsBridge() {
+        return new JsBridge();
+    }
+
+    private static long sinceStart(NavigationRecord record) {
+        return SystemClock.elapsedRealtime() - record.startElapsed;
+    }
+
+    private class JsBridge {
+        @JavascriptInterface
+        public void reportNavigationTiming(String json) {
+            try {
+                JSONObject timing = new JSONObject(json);
+                NavigationRecord record = lastFinished;
+                if (record != null && timing.optString("url").equals(record.url) && record.jsTiming == null) {
+                    record.jsTiming = timing;
+                    if (timing.has("ttfb")) metrics.recordTiming("nav.js_ttfb_ms", timing.getLong("ttfb"));
+                    if (timing.has("loadEvent")) metrics.recordTiming("nav.js_load_event_ms", timing.getLong("loadEvent"));
+                    TimingListener listener = timingListener;
+                    if (listener != null) listener.onNavigationTiming(timing, record);
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Malformed navigation timing from page", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.dealabs.pupchat;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.CookieManager;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Native outbox for chat messages. The page enqueues messages through a JS bridge; they are
+ * stored in SQLite and sent in order, one POST per message, whenever the network is available.
+ * The site has no batch endpoint, so a flush only saves on connection setup by reusing the
+ * kept-alive connection. Every message carries an idempotency key so a retried send can't post
+ * it twice. A message that hits an expired session stays queued until the user logs in again.
+ * The page's bridge reaches only the site's own frames and only queues for {@link #SEND_PATH}.
+ */
+class Outbox {
+
+    private static final String TAG = "PupChatOutbox";
+    static final String JS_BRIDGE_NAME = "PupChatOutbox";
+    // The one path the page may queue messages for
+    static final String SEND_PATH = BuildConfig.OUTBOX_SEND_PATH;
+
+    // Rows read from the database at a time while flushing
+    private static final int PAGE_SIZE = 20;
+    private static final int CONNECT_TIMEOUT_MS = 15_000;
+    private static final int READ_TIMEOUT_MS = 20_000;
+    private static final long RETRY_BASE_MS = 2000;
+    private static final long RETRY_MAX_MS = 5 * 60 * 1000L;
+
+    interface Listener {
+        /** Called on the main thread once a message has been accepted by the server. */
+        void onMessageSent(String idempotencyKey);
+    }
+
+    private final OutboxDatabase database;
+    private final String baseUrl;
+    private final ConnectivityMonitor connectivityMonitor;
+    private final Metrics metrics;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Backoff backoff = new Backoff(RETRY_BASE_MS, RETRY_MAX_MS);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Only touched on the executor thread
+    private ScheduledFuture<?> pendingRetry;
+
+    Outbox(Context context, String baseUrl, ConnectivityMonitor connectivityMonitor, Metrics metrics) {
+        this(new OutboxDatabase(context), baseUrl, connectivityMonitor, metrics);
+    }
+
+    Outbox(OutboxDatabase database, String baseUrl, ConnectivityMonitor connectivityMonitor, Metrics metrics) {
+        this.database = database;
+        this.baseUrl = baseUrl;
+        this.connectivityMonitor = connectivityMonitor;
+        this.metrics = metrics;
+        connectivityMonitor.addListener((connected, metered) -> {
+            // Back online: don't sit out the rest of a long backoff
+            if (connected) retryNow();
+        });
+    }
+
+    /** Queues a message for POSTing to a path on the site and returns its idempotency key. */
+    String enqueue(String path, String body, String contentType) {
+        if (path == null || !path.startsWith("/") || path.startsWith("//")) {
+            throw new IllegalArgumentException("Outbox paths must be relative to the site: " + path);
+        }
+        final String key = UUID.randomUUID().toString();
+        final ContentValues values = new ContentValues();
+        values.put(OutboxDatabase.COL_IDEMPOTENCY_KEY, key);
+        values.put(OutboxDatabase.COL_PATH, path);
+        values.put(OutboxDatabase.COL_BODY, body != null ? body : "");
+        values.put(OutboxDatabase.COL_CONTENT_TYPE, contentType != null ? contentType : "application/x-www-form-urlencoded");
+        values.put(OutboxDatabase.COL_CREATED_AT, System.currentTimeMillis());
+        executor.execute(() -> {
+            database.getWritableDatabase().insert(OutboxDatabase.TABLE, null, values);
+            metrics.increment("outbox.enqueued");
+            updateDepth();
+        });
+        flush();
+        return key;
+    }
+
+    /** Sends whatever is queued if the network is up. Safe to call at any time. */
+    void flush() {
+        if (!connectivityMonitor.isConnected()) return;
+        executor.execute(this::flushNow);
+    }
+
+    /** The user logged in again; messages held back by an expired session can go now. */
+    void onLoggedIn() {
+        if (connectivityMonitor.isConnected()) retryNow();
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Calls for the page (see {@link WebMessageBridge}): enqueue a message body for
+     * {@link #SEND_PATH}, replying with its idempotency key, and depth.
+     */
+    WebMessageBridge.Calls createJsBridge() {
+        return new JsBridge();
+    }
+
+    // --- Flushing, on the executor thread ---
+
+    private void retryNow() {
+        executor.execute(() -> {
+            if (pendingRetry != null) {
+                pendingRetry.cancel(false);
+                pendingRetry = null;
+            }
+            backoff.reset();
+            flushNow();
+        });
+    }
+
+    private void flushNow() {
+        if (pendingRetry != null) return; // A backoff retry will pick it up
+        long start = SystemClock.elapsedRealtime();
+        int sent = 0;
+        SQLiteDatabase db = database.getWritableDatabase();
+        while (connectivityMonitor.isConnected()) {
+            List<Message> page = loadPage(db);
+            if (page.isEmpty()) break;
+
+            List<Message> done = new ArrayList<>();
+            List<Message> accepted = new ArrayList<>();
+            boolean failed = false;
+            for (Message message : page) {
+                int status = send(message);
+                if (status >= 200 && status < 300 || status == HttpURLConnection.HTTP_CONFLICT) {
+                    // 409: the server already has this idempotency key
+                    done.add(message);
+                    accepted.add(message);
+                } else if (needsLogin(status)) {
+                    // The session expired; the message is fine, so keep it for after the next login
+                    Log.w(TAG, "Holding message " + message.key + " until the user logs in, got " + status);
+                    metrics.increment("outbox.needs_login");
+                    markAttempt(db, message);
+                    failed = true;
+                    break;
+                } else if (status >= 400 && status < 500 && status != HttpURLConnection.HTTP_CLIENT_TIMEOUT && status != 429) {
+                    Log.w(TAG, "Dropping message " + message.key + ", server rejected it with " + status);
+                    metrics.increment("outbox.rejected");
+                    done.add(message);
+                } else {
+                    // Keep order: nothing after a failed message is sent until it goes through
+                    markAttempt(db, message);
+                    failed = true;
+                    break;
+                }
+            }
+            deleteSent(db, done);
+            sent += accepted.size();
+            for (Message message : accepted) {
+                mainHandler.post(() -> {
+                    for (Listener listener : listeners) listener.onMessageSent(message.key);
+                });
+            }
+            if (failed) {
+                scheduleRetry();
+                break;
+            }
+            backoff.reset();
+        }
+        updateDepth();
+        if (sent > 0) {
+            metrics.add("outbox.sent", sent);
+            metrics.recordTiming("outbox.flush_ms", SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    private void scheduleRetry() {
+        long delay = backoff.nextDelayMs();
+        metrics.increment("outbox.retries");
+        Log.d(TAG, "Outbox send failed, retrying in " + delay + " ms");
+        pendingRetry = executor.schedule(() -> {
+            pendingRetry = null;
+            flushNow();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /** Redirects (to the login page), 401 and 403 mean the session cookie is no longer valid. */
+    static boolean needsLogin(int status) {
+        return status >= 300 && status < 400
+                || status == HttpURLConnection.HTTP_UNAUTHORIZED || status == HttpURLConnection.HTTP_FORBIDDEN;
+    }
+
+    private List<Message> loadPage(SQLiteDatabase db) {
+        List<Message> page = new ArrayList<>();
+        try (Cursor cursor = db.query(OutboxDatabase.TABLE,
+                new String[]{OutboxDatabase.COL_ID, OutboxDatabase.COL_IDEMPOTENCY_KEY, OutboxDatabase.COL_PATH,
+                        OutboxDatabase.COL_BODY, OutboxDatabase.COL_CONTENT_TYPE},
+                null, null, null, null, OutboxDatabase.COL_ID + " ASC", String.valueOf(PAGE_SIZE))) {
+            while (cursor.moveToNext()) {
+                Message message = new Message();
+                message.id = cursor.getLong(0);
+                message.key = cursor.getString(1);
+                message.path = cursor.getString(2);
+                message.body = cursor.getString(3);
+                message.contentType = cursor.getString(4);
+                page.add(message);
+            }
+        }
+        return page;
+    }
+
+    private void deleteSent(SQLiteDatabase db, List<Message> sent) {
+        if (sent.isEmpty()) return;
+        db.beginTransaction();
+        try {
+            for (Message message : sent) {
+                db.delete(OutboxDatabase.TABLE, OutboxDatabase.COL_ID + " = ?", new String[]{String.valueOf(message.id)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void markAttempt(SQLiteDatabase db, Message message) {
+        db.execSQL("UPDATE " + OutboxDatabase.TABLE + " SET " + OutboxDatabase.COL_ATTEMPTS + " = "
+                + OutboxDatabase.COL_ATTEMPTS + " + 1 WHERE " + OutboxDatabase.COL_ID + " = ?", new Object[]{message.id});
+    }
+
+    private void updateDepth() {
+        metrics.set("outbox.depth", DatabaseUtils.queryNumEntries(database.getReadableDatabase(), OutboxDatabase.TABLE));
+    }
+
+    /** Returns the HTTP status, or -1 if the request didn't complete. */
+    private int send(Message message) {
+        String url = baseUrl + message.path;
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            // A redirect here is the site bouncing an expired session to the login page;
+            // following it would GET the login form and report success
+            connection.setInstanceFollowRedirects(false);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", message.contentType);
+            connection.setRequestProperty("Idempotency-Key", message.key);
+            String cookies = CookieManager.getInstance().getCookie(url);
+            if (cookies != null) connection.setRequestProperty("Cookie", cookies);
+
+            byte[] body = message.body.getBytes(StandardCharsets.UTF_8);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            int status = connection.getResponseCode();
+            // Drain so the connection can be reused for the next message
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in != null) AssetCache.readFully(in);
+            return status;
+        } catch (IOException e) {
+            Log.w(TAG, "Send failed for " + message.key, e);
+            return -1;
+        } finally {
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+    private static final class Message {
+        long id;
+        String key;
+        String path;
+        String body;
+        String contentType;
+    }
+
+    private class JsBridge implements WebMessageBridge.Calls {
+
+        @Override
+        public void call(String method, JSONObject args, WebMessageBridge.Reply reply) {
+            switch (method) {
+                case "enqueue":
+                    // Only chat messages: the page can't queue cookie-carrying POSTs to other paths
+                    reply.send(enqueue(SEND_PATH, args.optString("body"), args.optString("contentType", null)));
+                    break;
+                case "depth":
+                    reply.send(metrics.get("outbox.depth"));
+                    break;
+                default:
+                    Log.w(TAG, "Unknown outbox bridge call " + method);
+                    reply.send(null);
+            }
+        }
+    }
+}
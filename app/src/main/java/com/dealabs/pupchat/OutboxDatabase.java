@@ -0,0 +1,47 @@
+package com.dealabs.pupchat;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/** Persistent queue of chat messages written while offline. */
+class OutboxDatabase extends SQLiteOpenHelper {
+
+    private static final String NAME = "outbox.db";
+    private static final int VERSION = 1;
+
+    static final String TABLE = "outbox";
+    static final String COL_ID = "_id";
+    static final String COL_IDEMPOTENCY_KEY = "idempotency_key";
+    static final String COL_PATH = "path";
+    static final String COL_BODY = "body";
+    static final String COL_CONTENT_TYPE = "content_type";
+    static final String COL_CREATED_AT = "created_at";
+    static final String COL_ATTEMPTS = "attempts";
+
+    OutboxDatabase(Context context) {
+        this(context, NAME);
+    }
+
+    /** Tests use their own file so they don't touch the app's queue. */
+    OutboxDatabase(Context context, String name) {
+        super(context, name, null, VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COL_IDEMPOTENCY_KEY + " TEXT NOT NULL UNIQUE, "
+                + COL_PATH + " TEXT NOT NULL, "
+                + COL_BODY + " TEXT NOT NULL, "
+                + COL_CONTENT_TYPE + " TEXT NOT NULL, "
+                + COL_CREATED_AT + " INTEGER NOT NULL, "
+                + COL_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Only one version so far
+    }
+}
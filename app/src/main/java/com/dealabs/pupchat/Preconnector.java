@@ -0,0 +1,154 @@
+package com.dealabs.pupchat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pays for DNS lookups while the activity is still inflating. Every host the site loads from
+ * is resolved, which fills the system DNS cache the WebView also resolves through. Nothing is
+ * connected to: the WebView's network stack keeps its own sockets and has no public preconnect,
+ * so a socket opened here would never carry its requests. {@link #onFirstNavigationTiming}
+ * records how much DNS time the first navigation saved.
+ */
+class Preconnector {
+
+    private static final String TAG = "PupChatPreconnect";
+    private static final String PREFS = "preconnect";
+    private static final String KEY_ASSET_HOSTS = "asset_hosts";
+    private static final int MAX_ASSET_HOSTS = 3;
+    // Lookups stay in the system cache at least this long, so resolving more often is wasted
+    private static final long MIN_INTERVAL_MS = 60_000;
+
+    private final SharedPreferences prefs;
+    private final String siteHost;
+    private final Metrics metrics;
+    private final ExecutorService executor = Executors.newFixedThreadPool(MAX_ASSET_HOSTS + 1);
+    private final Map<String, AtomicInteger> hostCounts = new ConcurrentHashMap<>();
+    private final List<String> assetHosts = new ArrayList<>();
+    private final AtomicBoolean firstNavigationRecorded = new AtomicBoolean();
+
+    private long lastWarmedAt = -MIN_INTERVAL_MS;
+    // Cold lookup cost measured by the latest warm-up, -1 until known
+    private volatile long siteDnsMs = -1;
+    private volatile long siteReadyAt = -1;
+
+    Preconnector(Context context, String baseUrl, Metrics metrics) {
+        this.prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        this.siteHost = Uri.parse(baseUrl).getHost();
+        this.metrics = metrics;
+        String saved = prefs.getString(KEY_ASSET_HOSTS, null);
+        if (saved != null) {
+            try {
+                JSONArray hosts = new JSONArray(saved);
+                for (int i = 0; i < hosts.length(); i++) assetHosts.add(hosts.getString(i));
+            } catch (JSONException e) {
+                Log.w(TAG, "Discarding unreadable asset hosts", e);
+            }
+        }
+    }
+
+    /** Resolves the site host and the asset hosts seen in earlier sessions, all in parallel. */
+    synchronized void preconnect() {
+        long now = SystemClock.elapsedRealtime();
+        if (siteHost == null || now - lastWarmedAt < MIN_INTERVAL_MS) return;
+        lastWarmedAt = now;
+        metrics.increment("preconnect.runs");
+        executor.execute(() -> {
+            long dns = resolve(siteHost);
+            if (dns < 0) return;
+            siteDnsMs = dns;
+            siteReadyAt = SystemClock.elapsedRealtime();
+        });
+        for (String host : assetHosts) {
+            executor.execute(() -> resolve(host));
+        }
+    }
+
+    /**
+     * Resolves again once the user has logged in, since the home page's requests follow right
+     * away and the warm-up at startup may have been minutes ago.
+     */
+    synchronized void onLoggedIn() {
+        lastWarmedAt = -MIN_INTERVAL_MS;
+        preconnect();
+    }
+
+    /** Counts a host a page loaded a subresource from; called on the WebView's IO threads. */
+    void recordHost(String host) {
+        if (host == null || host.equalsIgnoreCase(siteHost)) return;
+        AtomicInteger count = hostCounts.get(host);
+        if (count == null) {
+            hostCounts.putIfAbsent(host, new AtomicInteger());
+            count = hostCounts.get(host);
+        }
+        count.incrementAndGet();
+    }
+
+    /** Keeps the most used asset hosts for the next cold start. */
+    void persist() {
+        List<Map.Entry<String, AtomicInteger>> entries = new ArrayList<>(hostCounts.entrySet());
+        if (entries.isEmpty()) return;
+        Collections.sort(entries, (a, b) -> Integer.compare(b.getValue().get(), a.getValue().get()));
+        JSONArray hosts = new JSONArray();
+        for (int i = 0; i < entries.size() && i < MAX_ASSET_HOSTS; i++) {
+            hosts.put(entries.get(i).getKey());
+        }
+        prefs.edit().putString(KEY_ASSET_HOSTS, hosts.toString()).apply();
+    }
+
+    /**
+     * Compares the DNS time in the Navigation Timing of the process's first page against the
+     * cold lookup the warm-up measured, and records the difference as time saved.
+     */
+    void onFirstNavigationTiming(JSONObject timing, long navigationStartedAt) {
+        if (!firstNavigationRecorded.compareAndSet(false, true) || siteDnsMs < 0) return;
+        String url = timing.optString("url");
+        if (!siteHost.equalsIgnoreCase(Uri.parse(url).getHost())) return;
+        boolean readyFirst = siteReadyAt >= 0 && siteReadyAt <= navigationStartedAt;
+        metrics.increment(readyFirst ? "preconnect.ready_before_nav" : "preconnect.late_for_nav");
+        long dns = timing.optLong("dns", -1);
+        if (dns >= 0) metrics.recordTiming("preconnect.first_nav_dns_saved_ms", Math.max(0, siteDnsMs - dns));
+    }
+
+    JSONObject snapshot() throws JSONException {
+        return new JSONObject()
+                .put("siteDnsMs", siteDnsMs)
+                .put("assetHosts", new JSONArray(assetHosts));
+    }
+
+    // --- Lookups, on the executor ---
+
+    /** Returns how long the lookup took, or -1 if it failed. */
+    private long resolve(String host) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            InetAddress.getAllByName(host);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to resolve " + host, e);
+            metrics.increment("preconnect.failures");
+            return -1;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        metrics.recordTiming("preconnect.dns_ms", elapsed);
+        return elapsed;
+    }
+}
@@ -0,0 +1,189 @@
+package com.dealabs.pupchat;
+
+import android.app.Application;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.Log;
+import android.webkit.WebSettings;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class PupChatApplication extends Application {
+
+    private static final String TAG = "PupChatApp";
+    private static final long ASSET_CACHE_MAX_BYTES = 20 * 1024 * 1024;
+
+    // Shared by the components below for small background disk/network jobs
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+
+    private final Metrics metrics = new Metrics();
+    private DiagnosticsLogger diagnosticsLogger;
+    private AssetCache assetCache;
+    private AssetPack assetPack;
+    private SessionManager sessionManager;
+    private Preconnector preconnector;
+    private HostBlocklist hostBlocklist;
+    private DataSaver dataSaver;
+    private Outbox outbox;
+    private UploadEngine uploadEngine;
+    private ChatSearchIndex chatSearchIndex;
+    private StartupSnapshot startupSnapshot;
+    private ConnectivityMonitor connectivityMonitor;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        diagnosticsLogger = new DiagnosticsLogger(new File(getFilesDir(), "diagnostics"), metrics);
+        metrics.addSource("diagnostics", diagnosticsLogger::snapshot);
+
+        connectivityMonitor = new ConnectivityMonitor(this);
+        connectivityMonitor.start(ioExecutor);
+
+        sessionManager = new SessionManager(this, BuildConfig.BASE_URL, metrics);
+        preconnector = new Preconnector(this, BuildConfig.BASE_URL, metrics);
+        metrics.addSource("preconnect", preconnector::snapshot);
+
+        assetCache = new AssetCache(new File(getCacheDir(), "asset_cache"), ASSET_CACHE_MAX_BYTES, BuildConfig.BASE_URL);
+        metrics.addSource("assetCache", assetCache::snapshot);
+        startupSnapshot = new StartupSnapshot(new File(getFilesDir(), "startup_snapshot.jpg"), ioExecutor);
+        startupSnapshot.preload();
+
+        prewarmWebView();
+        ioExecutor.execute(assetCache::warmUp);
+
+        assetPack = new AssetPack(this, new File(getFilesDir(), "asset_pack"), BuildConfig.BASE_URL);
+        metrics.addSource("assetPack", assetPack::snapshot);
+        ioExecutor.execute(assetPack::warmUp);
+        if (!BuildConfig.ASSET_PACK_URL.isEmpty()) {
+            ioExecutor.execute(() -> assetPack.update(BuildConfig.ASSET_PACK_URL));
+        }
+
+        dataSaver = new DataSaver(new File(getCacheDir(), "data_saver"), BuildConfig.BASE_URL, connectivityMonitor);
+        metrics.addSource("dataSaver", dataSaver::snapshot);
+
+        // Messages queued in an earlier session go out as soon as we're online
+        outbox = new Outbox(this, BuildConfig.BASE_URL, connectivityMonitor, metrics);
+        outbox.flush();
+        uploadEngine = new UploadEngine(this, new File(getCacheDir(), "upload_spool"), BuildConfig.BASE_URL, connectivityMonitor, metrics);
+
+        chatSearchIndex = new ChatSearchIndex(this, metrics);
+        metrics.addSource("chatSearch", chatSearchIndex::snapshot);
+        chatSearchIndex.warmUp();
+        sessionManager.setLogoutListener(chatSearchIndex::clear);
+
+        metrics.addSource("sync", () -> {
+            SharedPreferences prefs = getSharedPreferences(SyncScheduler.PREFS, MODE_PRIVATE);
+            return new JSONObject()
+                    .put("totalWakeups", prefs.getLong(SyncScheduler.KEY_TOTAL_WAKEUPS, 0))
+                    .put("totalBytes", prefs.getLong(SyncScheduler.KEY_TOTAL_BYTES, 0));
+        });
+
+        hostBlocklist = new HostBlocklist(this, Uri.parse(BuildConfig.BASE_URL).getHost());
+        ioExecutor.execute(hostBlocklist::warmUp);
+        if (!BuildConfig.BLOCKLIST_URL.isEmpty()) {
+            ioExecutor.execute(() -> hostBlocklist.update(BuildConfig.BLOCKLIST_URL));
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        metrics.increment("memory.trim." + trimLevelName(level));
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            // Decoded again from disk on the next cold start if needed
+            startupSnapshot.release();
+        }
+    }
+
+    private static String trimLevelName(int level) {
+        switch (level) {
+            case TRIM_MEMORY_RUNNING_MODERATE: return "running_moderate";
+            case TRIM_MEMORY_RUNNING_LOW: return "running_low";
+            case TRIM_MEMORY_RUNNING_CRITICAL: return "running_critical";
+            case TRIM_MEMORY_UI_HIDDEN: return "ui_hidden";
+            case TRIM_MEMORY_BACKGROUND: return "background";
+            case TRIM_MEMORY_MODERATE: return "moderate";
+            case TRIM_MEMORY_COMPLETE: return "complete";
+            default: return String.valueOf(level);
+        }
+    }
+
+    // Loading the WebView provider (its APK, class loader and native library) is the bulk of the
+    // first WebView's cost and doesn't need the main thread, so start it while the activity inflates.
+    private void prewarmWebView() {
+        new Thread(() -> {
+            try {
+                WebSettings.getDefaultUserAgent(this);
+            } catch (RuntimeException e) {
+                // WebView missing or updating; the activity will hit the same error and report it
+                Log.w(TAG, "WebView prewarm failed", e);
+            }
+        }, "WebViewPrewarm").start();
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    DiagnosticsLogger getDiagnosticsLogger() {
+        return diagnosticsLogger;
+    }
+
+    /** Writes metrics.json to the app's external files dir, where adb can pull it. */
+    void exportMetrics() {
+        ioExecutor.execute(() -> metrics.exportTo(getExternalFilesDir("metrics")));
+    }
+
+    AssetCache getAssetCache() {
+        return assetCache;
+    }
+
+    AssetPack getAssetPack() {
+        return assetPack;
+    }
+
+    SessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    Preconnector getPreconnector() {
+        return preconnector;
+    }
+
+    HostBlocklist getHostBlocklist() {
+        return hostBlocklist;
+    }
+
+    DataSaver getDataSaver() {
+        return dataSaver;
+    }
+
+    Outbox getOutbox() {
+        return outbox;
+    }
+
+    UploadEngine getUploadEngine() {
+        return uploadEngine;
+    }
+
+    ChatSearchIndex getChatSearchIndex() {
+        return chatSearchIndex;
+    }
+
+    StartupSnapshot getStartupSnapshot() {
+        return startupSnapshot;
+    }
+
+    ConnectivityMonitor getConnectivityMonitor() {
+        return connectivityMonitor;
+    }
+
+    ExecutorService getIoExecutor() {
+        return ioExecutor;
+    }
+}
@@ -0,0 +1,108 @@
+package com.dealabs.pupchat;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.WebView;
+
+/**
+ * Keeps the WebView's latest {@link WebView#saveState} bundle and scroll position so a new
+ * WebView can pick up where a crashed or killed renderer left off. The bundle also goes into
+ * the activity's saved instance state, so it survives the process being killed in the
+ * background. Main thread only.
+ */
+class RendererRecovery {
+
+    private static final String TAG = "PupChatRecovery";
+    private static final String KEY_STATE = "pupchat.webview_state";
+    private static final String KEY_SCROLL_Y = "pupchat.webview_scroll_y";
+    // Past this many renderer deaths in the window, stop recreating and show an error
+    private static final int MAX_RECOVERIES = 3;
+    private static final long RECOVERY_WINDOW_MS = 60_000;
+
+    private final Metrics metrics;
+    private final long[] recoveryTimes = new long[MAX_RECOVERIES];
+    private int recoveryCount;
+
+    private Bundle savedState;
+    private int savedScrollY;
+    private long restoreStartedAt = -1;
+    private int pendingScrollY;
+
+    RendererRecovery(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Takes a fresh copy of the WebView's back stack and scroll position. */
+    void save(WebView webView) {
+        Bundle state = new Bundle();
+        try {
+            if (webView.saveState(state) == null) return;
+        } catch (RuntimeException e) {
+            // A dead renderer can leave the view unable to save; keep the previous copy
+            Log.w(TAG, "Unable to save WebView state", e);
+            return;
+        }
+        savedState = state;
+        savedScrollY = webView.getScrollY();
+    }
+
+    void saveInstanceState(Bundle outState) {
+        if (savedState == null) return;
+        outState.putBundle(KEY_STATE, savedState);
+        outState.putInt(KEY_SCROLL_Y, savedScrollY);
+    }
+
+    void restoreInstanceState(Bundle savedInstanceState) {
+        if (savedInstanceState == null) return;
+        savedState = savedInstanceState.getBundle(KEY_STATE);
+        savedScrollY = savedInstanceState.getInt(KEY_SCROLL_Y);
+    }
+
+    boolean hasSavedState() {
+        return savedState != null;
+    }
+
+    /**
+     * Records a renderer death. Returns false when renderers keep dying, in which case the
+     * caller should stop recreating the WebView.
+     */
+    boolean onRendererGone(boolean crashed) {
+        metrics.increment(crashed ? "webview.renderer_crashes" : "webview.renderer_killed");
+        long now = SystemClock.elapsedRealtime();
+        long oldest = recoveryTimes[recoveryCount % MAX_RECOVERIES];
+        if (recoveryCount >= MAX_RECOVERIES && now - oldest < RECOVERY_WINDOW_MS) {
+            metrics.increment("webview.recovery_given_up");
+            return false;
+        }
+        recoveryTimes[recoveryCount % MAX_RECOVERIES] = now;
+        recoveryCount++;
+        return true;
+    }
+
+    /** Restores the saved back stack into a new WebView; false when there is nothing to restore. */
+    boolean restore(WebView webView) {
+        if (savedState == null) return false;
+        restoreStartedAt = SystemClock.elapsedRealtime();
+        if (webView.restoreState(savedState) == null) {
+            restoreStartedAt = -1;
+            return false;
+        }
+        pendingScrollY = savedScrollY;
+        metrics.increment("webview.restores");
+        return true;
+    }
+
+    /** Finishes a restore once its page has loaded: scrolls back and records how long it took. */
+    void onPageFinished(WebView webView) {
+        if (restoreStartedAt < 0) return;
+        metrics.recordTiming("webview.restore_ms", SystemClock.elapsedRealtime() - restoreStartedAt);
+        restoreStartedAt = -1;
+        if (pendingScrollY > 0) {
+            // Scroll offsets are in physical pixels, the page scrolls in CSS pixels
+            float density = webView.getResources().getDisplayMetrics().density;
+            webView.evaluateJavascript("window.scrollTo(0," + Math.round(pendingScrollY / density) + ");", null);
+            pendingScrollY = 0;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.dealabs.pupchat;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, lock-free ring of long samples. Writers claim a slot with a single atomic
+ * increment; once full, the oldest samples are overwritten. Percentiles are computed over a
+ * copy, so readers never block writers.
+ */
+class SampleRing {
+
+    private final AtomicLongArray values;
+    private final AtomicLong count = new AtomicLong();
+
+    SampleRing(int capacity) {
+        values = new AtomicLongArray(capacity);
+    }
+
+    void add(long value) {
+        long index = count.getAndIncrement();
+        values.set((int) (index % values.length()), value);
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    /** Returns the retained samples, sorted ascending. */
+    long[] sortedSnapshot() {
+        int size = (int) Math.min(count.get(), values.length());
+        long[] snapshot = new long[size];
+        for (int i = 0; i < size; i++) {
+            snapshot[i] = values.get(i);
+        }
+        Arrays.sort(snapshot);
+        return snapshot;
+    }
+
+    /** Nearest-rank percentile of a sorted array, or -1 when it is empty. */
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return -1;
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+}
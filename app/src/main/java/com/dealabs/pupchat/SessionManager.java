@@ -0,0 +1,192 @@
+package com.dealabs.pupchat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.CookieManager;
+
+/**
+ * Tracks whether the site session is still good, so the first load goes straight to the page
+ * the user will end up on instead of bouncing home.php → login.php. State is kept in memory,
+ * updated on every navigation, and written to prefs (and cookies flushed to disk) at most once
+ * per {@link #PERSIST_DELAY_MS}. All methods run on the main thread.
+ */
+class SessionManager {
+
+    private static final String TAG = "PupChatSession";
+    static final String LOGIN_PATH = "/login.php";
+    static final String HOME_PATH = "/home.php";
+
+    private static final String PREFS = "app_prefs";
+    // Written by older versions on every navigation; only read once to migrate
+    private static final String KEY_LEGACY_LAST_URL = "last_url";
+    private static final String KEY_LOGGED_IN = "session_logged_in";
+    private static final String KEY_LAST_ACTIVE_AT = "session_last_active_at";
+    private static final String KEY_EXPIRES_AFTER_IDLE_MS = "session_expires_after_idle_ms";
+    private static final String KEY_HAD_SESSION_COOKIE = "session_had_cookie";
+    private static final String SESSION_COOKIE = "PHPSESSID";
+    private static final long PERSIST_DELAY_MS = 2000;
+    // Shorter idle times than this are never learned as the server's session lifetime
+    private static final long MIN_LEARNED_IDLE_MS = 5 * 60 * 1000L;
+
+    interface LogoutListener {
+        /**
+         * Called on the main thread when a logged-in session ends: the user logged out, the
+         * server expired it or its cookie went away. Whoever logs in next may be someone else.
+         */
+        void onLoggedOut();
+    }
+
+    private final SharedPreferences prefs;
+    private final String baseUrl;
+    private final Metrics metrics;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable persist = this::persistNow;
+
+    private boolean loggedIn;
+    private long lastActiveAt;
+    // Learned from home.php redirecting to login.php; 0 until that has been seen
+    private long expiresAfterIdleMs;
+    private boolean hadSessionCookie;
+    private boolean dirty;
+    private boolean cookiesDirty;
+    private String navigationStartUrl;
+    private LogoutListener logoutListener;
+
+    SessionManager(Context context, String baseUrl, Metrics metrics) {
+        this.prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        this.baseUrl = baseUrl;
+        this.metrics = metrics;
+        if (prefs.contains(KEY_LOGGED_IN)) {
+            loggedIn = prefs.getBoolean(KEY_LOGGED_IN, false);
+            lastActiveAt = prefs.getLong(KEY_LAST_ACTIVE_AT, 0);
+            expiresAfterIdleMs = prefs.getLong(KEY_EXPIRES_AFTER_IDLE_MS, 0);
+            hadSessionCookie = prefs.getBoolean(KEY_HAD_SESSION_COOKIE, false);
+        } else {
+            String lastUrl = prefs.getString(KEY_LEGACY_LAST_URL, null);
+            loggedIn = lastUrl != null && isHome(lastUrl);
+            lastActiveAt = System.currentTimeMillis();
+            prefs.edit().remove(KEY_LEGACY_LAST_URL).apply();
+        }
+    }
+
+    /** Best guess from saved state alone; cheap enough to call before the WebView exists. */
+    boolean isProbablyLoggedIn() {
+        if (!loggedIn) return false;
+        long idle = System.currentTimeMillis() - lastActiveAt;
+        return expiresAfterIdleMs <= 0 || idle <= expiresAfterIdleMs;
+    }
+
+    /** The URL to load first. Also checks the cookie jar, so call once the WebView is up. */
+    String firstUrl() {
+        boolean home = isProbablyLoggedIn();
+        if (home && hadSessionCookie && !hasSessionCookie()) {
+            // Cleared by the system or the user; the server would only redirect us to login
+            Log.d(TAG, "Session cookie gone, starting at login");
+            loggedIn = false;
+            markDirty();
+            home = false;
+            notifyLoggedOut();
+        }
+        metrics.increment(home ? "session.first_url_home" : "session.first_url_login");
+        return baseUrl + (home ? HOME_PATH : LOGIN_PATH);
+    }
+
+    void onPageStarted(String url, boolean newNavigation) {
+        if (newNavigation) navigationStartUrl = url;
+    }
+
+    /** Returns true when this page completed a login. */
+    boolean onPageFinished(String url) {
+        if (!url.startsWith(baseUrl)) return false;
+        long now = System.currentTimeMillis();
+        long idle = now - lastActiveAt;
+        String startUrl = navigationStartUrl;
+        boolean loggedInNow = false;
+
+        if (isLogin(url)) {
+            if (startUrl != null && isHome(startUrl)) {
+                // home.php bounced us to login: the server expired the session after this much idle time
+                metrics.increment("session.expired_redirects");
+                if (loggedIn && idle >= MIN_LEARNED_IDLE_MS
+                        && (expiresAfterIdleMs <= 0 || idle < expiresAfterIdleMs)) {
+                    expiresAfterIdleMs = idle;
+                }
+            }
+            if (loggedIn) {
+                cookiesDirty = true;
+                loggedIn = false;
+                notifyLoggedOut();
+            }
+        } else {
+            boolean fromLogin = startUrl != null && isLogin(startUrl);
+            if (isHome(url) && fromLogin) {
+                // login.php sent us home, so the session was still good
+                metrics.increment("session.login_redirects");
+                if (expiresAfterIdleMs > 0 && idle > expiresAfterIdleMs) expiresAfterIdleMs = idle;
+            }
+            // The login form took us to home.php, or to another page with a session cookie set
+            if (!loggedIn && (isHome(url) || fromLogin && hasSessionCookie())) {
+                cookiesDirty = true;
+                hadSessionCookie = hasSessionCookie();
+                loggedIn = true;
+                loggedInNow = true;
+                metrics.increment("session.logins");
+            }
+            if (!loggedIn) return false;
+        }
+        lastActiveAt = now;
+        markDirty();
+        return loggedInNow;
+    }
+
+    void setLogoutListener(LogoutListener listener) {
+        logoutListener = listener;
+    }
+
+    /** Writes any pending state right away, e.g. when the app goes to the background. */
+    void persistNow() {
+        mainHandler.removeCallbacks(persist);
+        if (dirty) {
+            dirty = false;
+            prefs.edit()
+                    .putBoolean(KEY_LOGGED_IN, loggedIn)
+                    .putLong(KEY_LAST_ACTIVE_AT, lastActiveAt)
+                    .putLong(KEY_EXPIRES_AFTER_IDLE_MS, expiresAfterIdleMs)
+                    .putBoolean(KEY_HAD_SESSION_COOKIE, hadSessionCookie)
+                    .apply();
+        }
+        if (cookiesDirty) {
+            cookiesDirty = false;
+            // Make a fresh login (or logout) survive the process being killed
+            CookieManager.getInstance().flush();
+            metrics.increment("session.cookie_flushes");
+        }
+    }
+
+    private void notifyLoggedOut() {
+        metrics.increment("session.logouts");
+        if (logoutListener != null) logoutListener.onLoggedOut();
+    }
+
+    private void markDirty() {
+        dirty = true;
+        mainHandler.removeCallbacks(persist);
+        mainHandler.postDelayed(persist, PERSIST_DELAY_MS);
+    }
+
+    private boolean hasSessionCookie() {
+        String cookies = CookieManager.getInstance().getCookie(baseUrl);
+        return cookies != null && cookies.contains(SESSION_COOKIE + "=");
+    }
+
+    private static boolean isHome(String url) {
+        return url.contains(HOME_PATH) && !url.contains(LOGIN_PATH);
+    }
+
+    private static boolean isLogin(String url) {
+        return url.contains(LOGIN_PATH);
+    }
+}
@@ -0,0 +1,134 @@
+package com.dealabs.pupchat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.tracing.Trace;
+
+import java.util.ArrayDeque;
+
+/**
+ * Runs startup work in stages so only the critical path (WebView setup and the first load)
+ * competes with the first page paint. Work for later stages waits until the page's first
+ * paint, or until {@link #FIRST_PAINT_TIMEOUT_MS} if that never comes (offline, error), and
+ * then runs one task per main-thread message so no single frame takes it all. Once a stage
+ * has started, work scheduled for it runs right away. Every task gets its own trace section
+ * and timing. Main thread only.
+ */
+class StartupScheduler {
+
+    enum Stage {
+        /** Runs immediately. */
+        CRITICAL,
+        /** Runs as soon as the first page has painted. */
+        AFTER_FIRST_PAINT,
+        /** Runs when the main thread next has nothing to do after the first paint. */
+        IDLE
+    }
+
+    // Trace sections are named PupChat.startup.<task>, next to StartupTrace's sections
+    private static final String SECTION_PREFIX = "PupChat.startup.";
+    private static final long FIRST_PAINT_TIMEOUT_MS = 5000;
+
+    private final Metrics metrics;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final long createdAt = SystemClock.elapsedRealtime();
+    private final ArrayDeque<Task> afterFirstPaint = new ArrayDeque<>();
+    private final ArrayDeque<Task> idle = new ArrayDeque<>();
+    private final Runnable firstPaintTimeout = this::onFirstPaint;
+    private boolean firstPainted;
+    private boolean idleStarted;
+    private boolean idleHandlerAdded;
+
+    StartupScheduler(Metrics metrics) {
+        this.metrics = metrics;
+        handler.postDelayed(firstPaintTimeout, FIRST_PAINT_TIMEOUT_MS);
+    }
+
+    void run(Stage stage, String name, Runnable work) {
+        Task task = new Task(name, work);
+        switch (stage) {
+            case CRITICAL:
+                task.run();
+                break;
+            case AFTER_FIRST_PAINT:
+                if (firstPainted) {
+                    task.run();
+                } else {
+                    afterFirstPaint.add(task);
+                }
+                break;
+            case IDLE:
+                if (idleStarted) {
+                    task.run();
+                } else {
+                    idle.add(task);
+                    if (firstPainted) addIdleHandler();
+                }
+                break;
+        }
+    }
+
+    /** Releases the later stages; call when the first page paints. Later calls do nothing. */
+    void onFirstPaint() {
+        if (firstPainted) return;
+        firstPainted = true;
+        handler.removeCallbacks(firstPaintTimeout);
+        metrics.recordTiming("startup.stage.after_first_paint_ms", SystemClock.elapsedRealtime() - createdAt);
+        runNextAfterFirstPaint();
+    }
+
+    void cancel() {
+        handler.removeCallbacksAndMessages(null);
+        afterFirstPaint.clear();
+        idle.clear();
+    }
+
+    private void runNextAfterFirstPaint() {
+        Task task = afterFirstPaint.poll();
+        if (task == null) {
+            addIdleHandler();
+            return;
+        }
+        task.run();
+        handler.post(this::runNextAfterFirstPaint);
+    }
+
+    private void addIdleHandler() {
+        if (idleHandlerAdded) return;
+        idleHandlerAdded = true;
+        Looper.myQueue().addIdleHandler(() -> {
+            if (!idleStarted) {
+                idleStarted = true;
+                metrics.recordTiming("startup.stage.idle_ms", SystemClock.elapsedRealtime() - createdAt);
+            }
+            Task task = idle.poll();
+            if (task != null) task.run();
+            // Keep the handler for the next idle moment while there is work left
+            idleHandlerAdded = !idle.isEmpty();
+            return idleHandlerAdded;
+        });
+    }
+
+    private final class Task {
+        final String name;
+        final Runnable work;
+
+        Task(String name, Runnable work) {
+            this.name = name;
+            this.work = work;
+        }
+
+        void run() {
+            long start = SystemClock.elapsedRealtime();
+            Trace.beginSection(SECTION_PREFIX + name);
+            try {
+                work.run();
+            } finally {
+                Trace.endSection();
+            }
+            metrics.recordTiming("startup.task." + name + "_ms", SystemClock.elapsedRealtime() - start);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.dealabs.pupchat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps a bitmap of the last rendered home screen on disk so the next cold start can show it
+ * before the WebView has painted anything.
+ */
+class StartupSnapshot {
+
+    private static final String TAG = "PupChatSnapshot";
+    // Half resolution in RGB_565 keeps the file small and the decode fast
+    private static final float SCALE = 0.5f;
+    private static final int JPEG_QUALITY = 80;
+
+    interface Listener {
+        void onSnapshotLoaded(Bitmap bitmap);
+    }
+
+    private final File file;
+    private final Executor ioExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private Bitmap bitmap;
+    private boolean loadFinished;
+    private Listener pendingListener;
+
+    StartupSnapshot(File file, Executor ioExecutor) {
+        this.file = file;
+        this.ioExecutor = ioExecutor;
+    }
+
+    /** Decodes the saved snapshot in the background; call as early as possible. */
+    void preload() {
+        ioExecutor.execute(() -> {
+            Bitmap decoded = null;
+            if (file.isFile()) {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+                decoded = BitmapFactory.decodeFile(file.getPath(), options);
+            }
+            final Bitmap result = decoded;
+            mainHandler.post(() -> {
+                bitmap = result;
+                loadFinished = true;
+                if (pendingListener != null && result != null) {
+                    pendingListener.onSnapshotLoaded(result);
+                }
+                pendingListener = null;
+            });
+        });
+    }
+
+    /**
+     * Delivers the snapshot to the listener on the main thread, now if it is already decoded or
+     * as soon as it is. Nothing is delivered when there is no snapshot.
+     */
+    void get(Listener listener) {
+        if (loadFinished) {
+            if (bitmap != null) listener.onSnapshotLoaded(bitmap);
+        } else {
+            pendingListener = listener;
+        }
+    }
+
+    /** Drops the in-memory bitmap once the live page is showing. */
+    void release() {
+        pendingListener = null;
+        bitmap = null;
+    }
+
+    /** Renders the view on the main thread and writes it to disk in the background. */
+    void capture(View view) {
+        int width = (int) (view.getWidth() * SCALE);
+        int height = (int) (view.getHeight() * SCALE);
+        if (width <= 0 || height <= 0) return;
+
+        final Bitmap capture = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(capture);
+        canvas.scale(SCALE, SCALE);
+        canvas.translate(-view.getScrollX(), -view.getScrollY());
+        view.draw(canvas);
+
+        ioExecutor.execute(() -> {
+            File tmp = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                capture.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write snapshot", e);
+                return;
+            } finally {
+                capture.recycle();
+            }
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Unable to replace snapshot");
+            }
+        });
+    }
+
+    /** Forgets the snapshot, e.g. after logout, so a stale home screen is never shown. */
+    void clear() {
+        release();
+        ioExecutor.execute(() -> {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        });
+    }
+}
@@ -0,0 +1,100 @@
+package com.dealabs.pupchat;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import androidx.tracing.Trace;
+
+/**
+ * Startup timings: time to the first drawn frame (snapshot or placeholder) and time until the
+ * first page has finished loading. Cold starts are measured from process start, warm starts
+ * from activity creation.
+ */
+class StartupTrace {
+
+    private static final String TAG = "PupChatStartup";
+
+    // Async trace sections, picked up by the macrobenchmarks in :benchmark
+    static final String SECTION_INITIAL_LOAD = "PupChat.initialLoad";
+    static final String SECTION_FILE_CHOOSER = "PupChat.fileChooser";
+
+    // An activity created this long after the process started is a warm start
+    private static final long COLD_START_WINDOW_MS = 5000;
+
+    private final long originMs;
+    private final String prefix;
+    private final Metrics metrics;
+    private long firstFrameMs = -1;
+    private long interactiveMs = -1;
+    private boolean initialLoadOpen;
+
+    StartupTrace(Metrics metrics) {
+        this.metrics = metrics;
+        long now = SystemClock.elapsedRealtime();
+        long processStart = Process.getStartElapsedRealtime();
+        boolean cold = now - processStart < COLD_START_WINDOW_MS;
+        originMs = cold ? processStart : now;
+        prefix = cold ? "startup.cold." : "startup.warm.";
+    }
+
+    /** Opens the trace section covering loadInitialUrl() up to onPageFinished. */
+    void beginInitialLoad() {
+        if (initialLoadOpen) return;
+        initialLoadOpen = true;
+        Trace.beginAsyncSection(SECTION_INITIAL_LOAD, 0);
+    }
+
+    void endInitialLoad() {
+        if (!initialLoadOpen) return;
+        initialLoadOpen = false;
+        Trace.endAsyncSection(SECTION_INITIAL_LOAD, 0);
+    }
+
+    /** Runs the callback after the view's first frame has been drawn. */
+    void onFirstFrame(final View view, final Runnable callback) {
+        final ViewTreeObserver.OnDrawListener listener = new ViewTreeObserver.OnDrawListener() {
+            private boolean fired;
+
+            @Override
+            public void onDraw() {
+                if (fired) return;
+                fired = true;
+                final ViewTreeObserver.OnDrawListener self = this;
+                // Listeners can't be removed during dispatch, and the frame isn't on screen yet
+                view.post(() -> {
+                    view.getViewTreeObserver().removeOnDrawListener(self);
+                    markFirstFrame();
+                    callback.run();
+                });
+            }
+        };
+        view.getViewTreeObserver().addOnDrawListener(listener);
+    }
+
+    void markFirstFrame() {
+        if (firstFrameMs >= 0) return;
+        firstFrameMs = SystemClock.elapsedRealtime() - originMs;
+        Log.i(TAG, prefix + "time to first frame: " + firstFrameMs + " ms");
+        metrics.recordTiming(prefix + "first_frame_ms", firstFrameMs);
+    }
+
+    /** Returns true the first time it is called, i.e. for the initial page load only. */
+    boolean markInteractive() {
+        if (interactiveMs >= 0) return false;
+        interactiveMs = SystemClock.elapsedRealtime() - originMs;
+        Log.i(TAG, prefix + "time to interactive: " + interactiveMs + " ms");
+        metrics.recordTiming(prefix + "interactive_ms", interactiveMs);
+        return true;
+    }
+
+    long getFirstFrameMs() {
+        return firstFrameMs;
+    }
+
+    long getInteractiveMs() {
+        return interactiveMs;
+    }
+}
@@ -0,0 +1,114 @@
+package com.dealabs.pupchat;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when {@link SyncWorker} runs next. Polls quickly right after the user leaves a
+ * conversation, backs off while nothing new arrives, and slows right down on low battery.
+ * Nothing is polled while the app is in the foreground; the live page shows new messages then.
+ * Nothing is polled at all unless the build names an unread endpoint; the site has none yet.
+ */
+class SyncScheduler {
+
+    private static final String TAG = "PupChatSync";
+    private static final String WORK_NAME = "pupchat-sync";
+    static final String PREFS = "sync_state";
+    static final String KEY_LAST_MESSAGE_ID = "last_message_id";
+    static final String KEY_TOTAL_WAKEUPS = "total_wakeups";
+    static final String KEY_TOTAL_BYTES = "total_bytes";
+    private static final String KEY_FOREGROUND = "foreground";
+    private static final String KEY_LAST_ACTIVE_AT = "last_active_at";
+    private static final String KEY_EMPTY_POLLS = "empty_polls";
+
+    // Within this long of the user leaving, assume a conversation is still going
+    private static final long ACTIVE_WINDOW_MS = 10 * 60 * 1000L;
+    private static final long ACTIVE_INTERVAL_MS = 2 * 60 * 1000L;
+    private static final long IDLE_BASE_INTERVAL_MS = 5 * 60 * 1000L;
+    private static final long MAX_INTERVAL_MS = 60 * 60 * 1000L;
+    private static final int LOW_BATTERY_PERCENT = 20;
+
+    private final Context context;
+    private final SharedPreferences prefs;
+
+    SyncScheduler(Context context) {
+        this.context = context.getApplicationContext();
+        this.prefs = this.context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    void onAppForeground() {
+        prefs.edit().putBoolean(KEY_FOREGROUND, true).apply();
+        WorkManager.getInstance(context).cancelUniqueWork(WORK_NAME);
+    }
+
+    void onAppBackground() {
+        prefs.edit()
+                .putBoolean(KEY_FOREGROUND, false)
+                .putLong(KEY_LAST_ACTIVE_AT, System.currentTimeMillis())
+                .putInt(KEY_EMPTY_POLLS, 0)
+                .apply();
+        if (!isEnabled()) return;
+        enqueue(ExistingWorkPolicy.REPLACE);
+    }
+
+    /** False until the site has an unread endpoint and the build sets SYNC_UNREAD_PATH. */
+    static boolean isEnabled() {
+        return !BuildConfig.SYNC_UNREAD_PATH.isEmpty();
+    }
+
+    boolean isAppInForeground() {
+        return prefs.getBoolean(KEY_FOREGROUND, false);
+    }
+
+    /** Called by the worker after each poll to chain the next one. */
+    void onPollFinished(boolean newMessages) {
+        int emptyPolls = newMessages ? 0 : prefs.getInt(KEY_EMPTY_POLLS, 0) + 1;
+        prefs.edit().putInt(KEY_EMPTY_POLLS, emptyPolls).apply();
+        // Appending from inside the running worker; REPLACE would cancel it
+        enqueue(ExistingWorkPolicy.APPEND_OR_REPLACE);
+    }
+
+    long nextDelayMs() {
+        if (isBatteryLow()) return MAX_INTERVAL_MS;
+        long sinceActive = System.currentTimeMillis() - prefs.getLong(KEY_LAST_ACTIVE_AT, 0);
+        if (sinceActive < ACTIVE_WINDOW_MS) return ACTIVE_INTERVAL_MS;
+        int emptyPolls = Math.min(prefs.getInt(KEY_EMPTY_POLLS, 0), 10);
+        return Math.min(MAX_INTERVAL_MS, IDLE_BASE_INTERVAL_MS << emptyPolls);
+    }
+
+    private void enqueue(ExistingWorkPolicy policy) {
+        long delay = nextDelayMs();
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(SyncWorker.class)
+                .setInitialDelay(delay, TimeUnit.MILLISECONDS)
+                .setConstraints(constraints)
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, policy, request);
+        Log.d(TAG, "Next sync in " + delay / 1000 + " s");
+    }
+
+    private boolean isBatteryLow() {
+        // Sticky broadcast: no receiver is actually registered
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) return false;
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        boolean charging = status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL;
+        return !charging && level >= 0 && scale > 0 && level * 100 / scale <= LOW_BATTERY_PERCENT;
+    }
+}
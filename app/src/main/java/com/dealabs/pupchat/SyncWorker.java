@@ -0,0 +1,142 @@
+package com.dealabs.pupchat;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.CookieManager;
+
+import androidx.annotation.NonNull;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Background poll of a compact unread-count endpoint instead of rendering home.php. New
+ * messages are coalesced into a single notification that is updated in place.
+ *
+ * <p>The site doesn't serve that endpoint yet; it is server work still to be done. Until a
+ * build sets {@code BuildConfig.SYNC_UNREAD_PATH}, {@link SyncScheduler} never runs this.
+ */
+public class SyncWorker extends Worker {
+
+    private static final String TAG = "PupChatSync";
+    private static final String CHANNEL_ID = "messages";
+    private static final int NOTIFICATION_ID = 1;
+    private static final int CONNECT_TIMEOUT_MS = 15_000;
+    private static final int READ_TIMEOUT_MS = 20_000;
+
+    public SyncWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        SyncScheduler scheduler = new SyncScheduler(getApplicationContext());
+        if (!SyncScheduler.isEnabled()) {
+            return Result.success(); // Left over from a build that had an endpoint; not chained again
+        }
+        if (scheduler.isAppInForeground()) {
+            return Result.success(); // Rescheduled when the app goes to the background again
+        }
+
+        SharedPreferences prefs = getApplicationContext().getSharedPreferences(SyncScheduler.PREFS, Context.MODE_PRIVATE);
+        long lastMessageId = prefs.getLong(SyncScheduler.KEY_LAST_MESSAGE_ID, 0);
+        long start = SystemClock.elapsedRealtime();
+        boolean newMessages = false;
+        long bytes = 0;
+        try {
+            // Expected to return {"unread": 3, "last_id": 1234}; since= lets the server send only the delta
+            String url = BuildConfig.BASE_URL + BuildConfig.SYNC_UNREAD_PATH + "?since=" + lastMessageId;
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            try {
+                connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                connection.setReadTimeout(READ_TIMEOUT_MS);
+                connection.setRequestProperty("Accept", "application/json");
+                String cookies = CookieManager.getInstance().getCookie(url);
+                if (cookies != null) connection.setRequestProperty("Cookie", cookies);
+
+                if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                    byte[] body = AssetCache.readFully(connection.getInputStream());
+                    bytes = body.length;
+                    JSONObject json = new JSONObject(new String(body, StandardCharsets.UTF_8));
+                    int unread = json.optInt("unread", 0);
+                    long newestId = json.optLong("last_id", lastMessageId);
+                    if (unread > 0 && newestId > lastMessageId) {
+                        newMessages = true;
+                        prefs.edit().putLong(SyncScheduler.KEY_LAST_MESSAGE_ID, newestId).apply();
+                        showNotification(unread);
+                    }
+                }
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Sync poll failed", e);
+        }
+
+        recordWakeup(prefs, bytes, SystemClock.elapsedRealtime() - start);
+        scheduler.onPollFinished(newMessages);
+        return Result.success();
+    }
+
+    private void recordWakeup(SharedPreferences prefs, long bytes, long durationMs) {
+        // Totals survive process death; the in-memory metrics only cover this process
+        prefs.edit()
+                .putLong(SyncScheduler.KEY_TOTAL_WAKEUPS, prefs.getLong(SyncScheduler.KEY_TOTAL_WAKEUPS, 0) + 1)
+                .putLong(SyncScheduler.KEY_TOTAL_BYTES, prefs.getLong(SyncScheduler.KEY_TOTAL_BYTES, 0) + bytes)
+                .apply();
+        PupChatApplication app = (PupChatApplication) getApplicationContext();
+        Metrics metrics = app.getMetrics();
+        metrics.increment("sync.wakeups");
+        metrics.recordTiming("sync.bytes", bytes);
+        metrics.recordTiming("sync.duration_ms", durationMs);
+        app.exportMetrics();
+    }
+
+    private void showNotification(int unread) {
+        Context context = getApplicationContext();
+        NotificationManagerCompat manager = NotificationManagerCompat.from(context);
+        if (!manager.areNotificationsEnabled()) return;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    context.getString(R.string.notification_channel_messages), NotificationManager.IMPORTANCE_DEFAULT);
+            context.getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+
+        Intent intent = new Intent(context, MainActivity.class).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(context, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_notify_chat)
+                .setContentTitle(context.getString(R.string.app_name))
+                .setContentText(context.getResources().getQuantityString(R.plurals.unread_messages, unread, unread))
+                .setNumber(unread)
+                .setOnlyAlertOnce(true)
+                .setAutoCancel(true)
+                .setContentIntent(contentIntent);
+        try {
+            // One notification, updated in place, however many polls found something
+            manager.notify(NOTIFICATION_ID, builder.build());
+        } catch (SecurityException e) {
+            Log.w(TAG, "Notification permission not granted", e);
+        }
+    }
+}
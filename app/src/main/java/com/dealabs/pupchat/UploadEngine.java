@@ -0,0 +1,519 @@
+package com.dealabs.pupchat;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.webkit.CookieManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Native upload path for large recordings. Files are streamed straight from their content
+ * URIs in fixed-size chunks, each a PUT with a Content-Range header, so memory use stays at
+ * a copy buffer. Files whose size the provider doesn't report are first copied to the cache
+ * directory, since every chunk has to state the total. When a chunk fails, the server is asked
+ * how much it has ({@code Content-Range: bytes *}/total) and the upload resumes from there;
+ * while the device is offline the upload waits for the network without using up attempts.
+ * Resume state lives only in memory: uploads still running when the process dies are lost.
+ *
+ * <p>Server side, per upload URL ({@code path?upload_id=...}): answer 308 with a
+ * {@code Range: bytes=0-N} header while incomplete, and 200/201 once the last byte is in.
+ */
+class UploadEngine {
+
+    private static final String TAG = "PupChatUpload";
+    static final String JS_BRIDGE_NAME = "PupChatUpload";
+
+    private static final int CHUNK_BYTES = 512 * 1024;
+    private static final int COPY_BUFFER_BYTES = 16 * 1024;
+    private static final int MAX_CONCURRENT_UPLOADS = 2;
+    private static final int MAX_ATTEMPTS = 8;
+    private static final int CONNECT_TIMEOUT_MS = 15_000;
+    private static final int READ_TIMEOUT_MS = 30_000;
+    private static final long RETRY_BASE_MS = 1000;
+    private static final long RETRY_MAX_MS = 60_000;
+    private static final int HTTP_RESUME_INCOMPLETE = 308;
+    private static final int MAX_RESPONSE_CHARS = 16 * 1024;
+
+    enum State { QUEUED, UPLOADING, RETRYING, DONE, FAILED, CANCELLED }
+
+    interface Listener {
+        /** Called on the main thread after each chunk and on every state change. */
+        void onUploadProgress(JSONObject event);
+    }
+
+    /** Lets the page's request open a file picker; the callback gets null when nothing was picked. */
+    interface Picker {
+        void pick(String accept, Consumer<Uri[]> callback);
+    }
+
+    private final ContentResolver contentResolver;
+    private final File spoolDir;
+    private final String baseUrl;
+    private final ConnectivityMonitor connectivityMonitor;
+    private final Metrics metrics;
+    private final ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_UPLOADS);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    // Uploads waiting for the network wait on this; notified on reconnect and on cancel
+    private final Object connectivityLock = new Object();
+
+    UploadEngine(Context context, File spoolDir, String baseUrl, ConnectivityMonitor connectivityMonitor, Metrics metrics) {
+        this.contentResolver = context.getContentResolver();
+        this.spoolDir = spoolDir;
+        this.baseUrl = baseUrl;
+        this.connectivityMonitor = connectivityMonitor;
+        this.metrics = metrics;
+        connectivityMonitor.addListener((connected, metered) -> {
+            if (connected) wakeWaiting();
+        });
+    }
+
+    /** Queues a content URI for upload to a path on the site and returns the upload's ID. */
+    String enqueue(Uri uri, String path, String batchId) {
+        if (path == null || !path.startsWith("/") || path.startsWith("//")) {
+            throw new IllegalArgumentException("Upload paths must be relative to the site: " + path);
+        }
+        Upload upload = new Upload();
+        upload.id = UUID.randomUUID().toString();
+        upload.batchId = batchId;
+        upload.uri = uri;
+        upload.source = uri;
+        upload.path = path;
+        describe(upload);
+        uploads.put(upload.id, upload);
+        metrics.increment("upload.queued");
+        publish(upload);
+        executor.execute(() -> run(upload));
+        return upload.id;
+    }
+
+    void cancel(String id) {
+        Upload upload = uploads.get(id);
+        if (upload == null) return;
+        upload.cancelled = true;
+        wakeWaiting();
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Calls for the page: chooseAndUpload and cancel (see {@link WebMessageBridge}). */
+    WebMessageBridge.Calls createJsBridge(Picker picker) {
+        return new JsBridge(picker);
+    }
+
+    // --- Uploading, on the executor threads ---
+
+    private void run(Upload upload) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            if (upload.size < 0) spool(upload);
+            upload(upload);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + upload.name, e);
+            fail(upload, "Unable to read the file");
+        } finally {
+            if (upload.spoolFile != null && !upload.spoolFile.delete()) {
+                Log.w(TAG, "Unable to delete " + upload.spoolFile);
+            }
+        }
+        if (upload.cancelled) {
+            setState(upload, State.CANCELLED);
+            metrics.increment("upload.cancelled");
+        } else if (upload.state == State.DONE) {
+            metrics.increment("upload.completed");
+            metrics.recordTiming("upload.duration_ms", SystemClock.elapsedRealtime() - start);
+        } else if (upload.state != State.FAILED) {
+            fail(upload, "Interrupted");
+        }
+    }
+
+    private void upload(Upload upload) {
+        Backoff backoff = new Backoff(RETRY_BASE_MS, RETRY_MAX_MS);
+        int failures = 0;
+        setState(upload, State.UPLOADING);
+        while (!upload.cancelled && upload.state != State.DONE && upload.state != State.FAILED) {
+            try {
+                if (upload.needsResync) {
+                    queryOffset(upload);
+                    upload.needsResync = false;
+                }
+                if (upload.state == State.UPLOADING) sendChunk(upload);
+                failures = 0;
+                backoff.reset();
+            } catch (IOException e) {
+                upload.needsResync = true;
+                setState(upload, State.RETRYING);
+                if (!connectivityMonitor.isConnected()) {
+                    // Offline isn't the server's fault; wait it out without using up an attempt
+                    Log.d(TAG, "Offline, " + upload.name + " waits for the network", e);
+                    if (!awaitConnection(upload)) break;
+                } else if (++failures >= MAX_ATTEMPTS) {
+                    Log.w(TAG, "Giving up on " + upload.name + " at " + upload.offset + " bytes", e);
+                    fail(upload, e.getMessage());
+                    break;
+                } else {
+                    Log.d(TAG, "Chunk failed for " + upload.name + ", resuming after a pause", e);
+                    metrics.increment("upload.chunk_retries");
+                    if (!sleep(backoff.nextDelayMs())) break;
+                }
+                if (!upload.cancelled) setState(upload, State.UPLOADING);
+            }
+        }
+    }
+
+    /** Finds the size of a file the provider didn't describe, copying it to the cache if need be. */
+    private void spool(Upload upload) throws IOException {
+        try (ParcelFileDescriptor descriptor = contentResolver.openFileDescriptor(upload.uri, "r")) {
+            long size = descriptor != null ? descriptor.getStatSize() : -1;
+            if (size >= 0) {
+                upload.size = size;
+                return;
+            }
+        } catch (IOException | SecurityException | IllegalArgumentException e) {
+            Log.d(TAG, "No file descriptor for " + upload.uri + ", copying it instead", e);
+        }
+        if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) throw new IOException("Unable to create " + spoolDir);
+        File file = new File(spoolDir, upload.id);
+        upload.spoolFile = file;
+        try (InputStream in = contentResolver.openInputStream(upload.uri)) {
+            if (in == null) throw new IOException("Unable to open " + upload.uri);
+            upload.size = copy(in, new FileOutputStream(file), Long.MAX_VALUE);
+        }
+        upload.source = Uri.fromFile(file);
+        metrics.increment("upload.spooled");
+    }
+
+    private void sendChunk(Upload upload) throws IOException {
+        long start = upload.offset;
+        long length = Math.min(CHUNK_BYTES, upload.size - start);
+        long chunkStart = SystemClock.elapsedRealtime();
+
+        HttpURLConnection connection = openConnection(upload);
+        long sent;
+        try (InputStream in = openAt(upload.source, start)) {
+            connection.setFixedLengthStreamingMode(length);
+            // An empty file has no byte range to name; it goes as one empty request
+            connection.setRequestProperty("Content-Range", length > 0
+                    ? "bytes " + start + "-" + (start + length - 1) + "/" + upload.size
+                    : "bytes */0");
+            sent = copy(in, connection.getOutputStream(), length);
+            if (sent != length) throw new IOException("File shrank while uploading");
+            int status = connection.getResponseCode();
+            handleResponse(upload, connection, status);
+            if (status == HTTP_RESUME_INCOMPLETE && upload.offset <= start) {
+                // Otherwise the same chunk would be sent again forever
+                throw new IOException("Server didn't take the chunk at " + start);
+            }
+        } finally {
+            connection.disconnect();
+        }
+
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - chunkStart);
+        upload.lastChunkKbps = sent * 8 / elapsed;
+        metrics.recordTiming("upload.chunk_ms", elapsed);
+        metrics.recordTiming("upload.chunk_kbps", upload.lastChunkKbps);
+        metrics.add("upload.bytes", sent);
+        publish(upload);
+    }
+
+    private void handleResponse(Upload upload, HttpURLConnection connection, int status) throws IOException {
+        if (status == HTTP_RESUME_INCOMPLETE) {
+            upload.offset = acknowledgedOffset(connection);
+        } else if (status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_CREATED) {
+            upload.offset = upload.size;
+            upload.response = readResponse(connection);
+            setState(upload, State.DONE);
+        } else if (status >= 300 && status < 500 && status != HttpURLConnection.HTTP_CLIENT_TIMEOUT && status != 429) {
+            // The server won't take this upload, or wants a login first; retrying can't help
+            Log.w(TAG, "Upload " + upload.name + " rejected with " + status);
+            fail(upload, "HTTP " + status);
+        } else {
+            throw new IOException("HTTP " + status);
+        }
+    }
+
+    private void queryOffset(Upload upload) throws IOException {
+        HttpURLConnection connection = openConnection(upload);
+        try {
+            connection.setFixedLengthStreamingMode(0);
+            connection.setRequestProperty("Content-Range", "bytes */" + upload.size);
+            connection.getOutputStream().close();
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                upload.offset = 0; // The server forgot the partial upload
+            } else {
+                handleResponse(upload, connection, status);
+            }
+            metrics.increment("upload.resumes");
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection openConnection(Upload upload) throws IOException {
+        String url = baseUrl + upload.path + (upload.path.contains("?") ? "&" : "?") + "upload_id=" + upload.id;
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        // A redirect would replay the chunk somewhere else, most likely the login page
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestMethod("PUT");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", upload.mimeType);
+        connection.setRequestProperty("X-Upload-Name", Uri.encode(upload.name));
+        String cookies = CookieManager.getInstance().getCookie(url);
+        if (cookies != null) connection.setRequestProperty("Cookie", cookies);
+        return connection;
+    }
+
+    /** Opens the file positioned at the offset, seeking when possible instead of reading through. */
+    private InputStream openAt(Uri uri, long offset) throws IOException {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = contentResolver.openFileDescriptor(uri, "r");
+        } catch (IOException | SecurityException | IllegalArgumentException e) {
+            Log.d(TAG, "No file descriptor for " + uri + ", streaming instead", e);
+        }
+        if (descriptor != null) {
+            FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+            try {
+                in.getChannel().position(offset);
+                return in;
+            } catch (IOException e) {
+                // A pipe, not a file; fall back to skipping
+                in.close();
+            }
+        }
+        InputStream in = contentResolver.openInputStream(uri);
+        if (in == null) throw new IOException("Unable to open " + uri);
+        long remaining = offset;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                in.close();
+                throw new IOException("Unable to skip to " + offset);
+            }
+            remaining -= skipped;
+        }
+        return in;
+    }
+
+    private void describe(Upload upload) {
+        upload.name = "upload";
+        upload.size = -1;
+        try (Cursor cursor = contentResolver.query(upload.uri,
+                new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                if (!cursor.isNull(0)) upload.name = cursor.getString(0);
+                if (!cursor.isNull(1)) upload.size = cursor.getLong(1);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Unable to query " + upload.uri, e);
+        }
+        String type = contentResolver.getType(upload.uri);
+        upload.mimeType = type != null ? type : "application/octet-stream";
+    }
+
+    private void fail(Upload upload, String error) {
+        upload.error = error;
+        setState(upload, State.FAILED);
+        metrics.increment("upload.failed");
+    }
+
+    /** Blocks until the device is online or the upload is cancelled; false if interrupted. */
+    private boolean awaitConnection(Upload upload) {
+        long start = SystemClock.elapsedRealtime();
+        synchronized (connectivityLock) {
+            while (!connectivityMonitor.isConnected() && !upload.cancelled) {
+                try {
+                    connectivityLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        metrics.recordTiming("upload.offline_wait_ms", SystemClock.elapsedRealtime() - start);
+        return true;
+    }
+
+    private void wakeWaiting() {
+        synchronized (connectivityLock) {
+            connectivityLock.notifyAll();
+        }
+    }
+
+    private void setState(Upload upload, State state) {
+        upload.state = state;
+        publish(upload);
+    }
+
+    private void publish(Upload upload) {
+        final JSONObject event;
+        try {
+            event = upload.toJson();
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to describe upload", e);
+            return;
+        }
+        if (upload.state == State.DONE || upload.state == State.FAILED || upload.state == State.CANCELLED) {
+            uploads.remove(upload.id);
+        }
+        mainHandler.post(() -> {
+            for (Listener listener : listeners) listener.onUploadProgress(event);
+        });
+    }
+
+    // --- Helpers ---
+
+    private static long acknowledgedOffset(HttpURLConnection connection) {
+        // "Range: bytes=0-N" means bytes 0..N are stored; no header means nothing is
+        String range = connection.getHeaderField("Range");
+        if (range == null) return 0;
+        int dash = range.lastIndexOf('-');
+        try {
+            return Long.parseLong(range.substring(dash + 1).trim()) + 1;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_BYTES];
+        long copied = 0;
+        try (OutputStream o = out) {
+            while (copied < length) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - copied));
+                if (read == -1) break;
+                o.write(buffer, 0, read);
+                copied += read;
+            }
+        }
+        return copied;
+    }
+
+    private static String readResponse(HttpURLConnection connection) {
+        try {
+            String body = new String(AssetCache.readFully(connection.getInputStream()), StandardCharsets.UTF_8);
+            return body.length() > MAX_RESPONSE_CHARS ? body.substring(0, MAX_RESPONSE_CHARS) : body;
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static boolean sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static final class Upload {
+        String id;
+        String batchId;
+        Uri uri;
+        // Where chunks are read from: the URI itself, or its copy in the spool directory
+        Uri source;
+        File spoolFile;
+        String path;
+        String name;
+        String mimeType;
+        long size;
+        volatile long offset;
+        volatile State state = State.QUEUED;
+        volatile boolean cancelled;
+        volatile long lastChunkKbps;
+        boolean needsResync;
+        String response;
+        String error;
+
+        JSONObject toJson() throws JSONException {
+            return new JSONObject()
+                    .put("id", id)
+                    .put("batchId", batchId)
+                    .put("name", name)
+                    .put("type", mimeType)
+                    .put("state", state.name().toLowerCase(Locale.US))
+                    .put("offset", offset)
+                    .put("size", size)
+                    .put("chunkKbps", lastChunkKbps)
+                    .put("response", response != null ? response : JSONObject.NULL)
+                    .put("error", error != null ? error : JSONObject.NULL);
+        }
+    }
+
+    private class JsBridge implements WebMessageBridge.Calls {
+        private final Picker picker;
+
+        JsBridge(Picker picker) {
+            this.picker = picker;
+        }
+
+        @Override
+        public void call(String method, JSONObject args, WebMessageBridge.Reply reply) {
+            switch (method) {
+                case "chooseAndUpload":
+                    reply.send(chooseAndUpload(args.optString("path"), args.optString("accept")));
+                    break;
+                case "cancel":
+                    UploadEngine.this.cancel(args.optString("id"));
+                    reply.send(null);
+                    break;
+                default:
+                    Log.w(TAG, "Unknown upload bridge call " + method);
+                    reply.send(null);
+            }
+        }
+
+        /**
+         * Lets the user pick or record files and uploads each of them to the path. Returns a
+         * batch ID that progress events carry, or an empty string if refused.
+         */
+        private String chooseAndUpload(final String path, String accept) {
+            if (!path.startsWith("/") || path.startsWith("//")) return "";
+            final String batchId = UUID.randomUUID().toString();
+            picker.pick(accept.isEmpty() ? "*/*" : accept, uris -> {
+                if (uris == null) return;
+                for (Uri uri : uris) enqueue(uri, path, batchId);
+            });
+            return batchId;
+        }
+    }
+}
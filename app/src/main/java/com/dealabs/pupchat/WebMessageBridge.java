@@ -0,0 +1,89 @@
+package com.dealabs.pupchat;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.WebView;
+
+import androidx.webkit.JavaScriptReplyProxy;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+
+/**
+ * A native API that only the site's own frames can reach. Unlike addJavascriptInterface, which
+ * puts the object into every frame, third-party iframes and ads included, the WebView injects
+ * it only into frames whose origin is the site's. The page calls
+ * {@code Name.postMessage(JSON.stringify({id, method, ...}))} and gets {@code {id, result}}
+ * back as a message event on the same object.
+ */
+final class WebMessageBridge {
+
+    private static final String TAG = "PupChatBridge";
+    private static final Handler MAIN = new Handler(Looper.getMainLooper());
+
+    interface Calls {
+        /** Handles one call, on the main thread. Answer through the reply, now or later. */
+        void call(String method, JSONObject args, Reply reply);
+    }
+
+    private WebMessageBridge() {
+    }
+
+    /** Installs the bridge for frames of the URL's origin; false if this WebView can't. */
+    static boolean add(WebView view, String name, String siteUrl, Calls calls) {
+        if (!WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_LISTENER)) return false;
+        WebViewCompat.addWebMessageListener(view, name, Collections.singleton(originOf(siteUrl)),
+                (webView, message, sourceOrigin, isMainFrame, replyProxy) -> {
+                    String data = message.getData();
+                    if (data == null) return;
+                    try {
+                        JSONObject args = new JSONObject(data);
+                        calls.call(args.optString("method"), args, new Reply(replyProxy, args.opt("id")));
+                    } catch (JSONException e) {
+                        Log.w(TAG, "Ignoring unreadable call to " + name, e);
+                    }
+                });
+        return true;
+    }
+
+    /** "scheme://host[:port]", the form allowed-origin rules take. */
+    static String originOf(String url) {
+        Uri uri = Uri.parse(url);
+        return uri.getScheme() + "://" + uri.getHost() + (uri.getPort() != -1 ? ":" + uri.getPort() : "");
+    }
+
+    static final class Reply {
+        private final JavaScriptReplyProxy proxy;
+        private final Object id;
+
+        Reply(JavaScriptReplyProxy proxy, Object id) {
+            this.proxy = proxy;
+            this.id = id;
+        }
+
+        /** Answers the call. Safe from any thread; the message is posted from the main thread. */
+        void send(Object result) {
+            final String message;
+            try {
+                message = new JSONObject()
+                        .put("id", id != null ? id : JSONObject.NULL)
+                        .put("result", result != null ? result : JSONObject.NULL)
+                        .toString();
+            } catch (JSONException e) {
+                Log.w(TAG, "Unable to encode a reply", e);
+                return;
+            }
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                proxy.postMessage(message);
+            } else {
+                MAIN.post(() -> proxy.postMessage(message));
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.dealabs.pupchat;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Debug;
+import android.util.Log;
+import android.view.ViewGroup;
+import android.webkit.WebView;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps recently shown pages alive in parked WebViews, so going back to the home feed or
+ * into a recent conversation is a view swap instead of a reload. Parked views are evicted
+ * least recently used first; how many are kept depends on the device's memory class. Also
+ * counts page visits so the most visited pages can be prerendered. Main thread only.
+ */
+class WebViewPool {
+
+    private static final String TAG = "PupChatWebViewPool";
+    private static final String PREFS = "webview_pool";
+    private static final String KEY_VISITS = "visits";
+    private static final int MAX_TRACKED_VISITS = 20;
+
+    private final SharedPreferences prefs;
+    private final int capacity;
+    private final int memoryClassMb;
+    // Access-ordered, so iteration starts at the least recently used page
+    private final LinkedHashMap<String, WebView> parked = new LinkedHashMap<>(8, 0.75f, true);
+    private final Map<String, Integer> visits = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong prerenders = new AtomicLong();
+    private volatile int size;
+
+    WebViewPool(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        this.memoryClassMb = activityManager.getMemoryClass();
+        this.capacity = capacityFor(memoryClassMb, activityManager.isLowRamDevice());
+        this.prefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        loadVisits();
+    }
+
+    // Each parked page costs its DOM and JS heap in the renderer, typically 20-60 MB
+    private static int capacityFor(int memoryClassMb, boolean lowRam) {
+        if (lowRam || memoryClassMb < 128) return 0;
+        if (memoryClassMb < 256) return 1;
+        if (memoryClassMb < 384) return 2;
+        return 3;
+    }
+
+    boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /** Removes and returns the parked view showing the URL, or null. Counts as a hit or miss. */
+    WebView take(String url) {
+        WebView view = parked.remove(keyFor(url));
+        size = parked.size();
+        if (view != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return view;
+    }
+
+    boolean contains(String url) {
+        return parked.containsKey(keyFor(url));
+    }
+
+    /** Parks a view that is no longer on screen, evicting older ones past the capacity. */
+    void park(String url, WebView view) {
+        if (url == null || capacity == 0) {
+            destroy(view);
+            return;
+        }
+        view.onPause();
+        WebView replaced = parked.put(keyFor(url), view);
+        if (replaced != null && replaced != view) destroy(replaced);
+        trimTo(capacity);
+    }
+
+    /** Parks a view that has just started loading a page nobody has asked for yet. */
+    void parkPrerendered(String url, WebView view) {
+        prerenders.incrementAndGet();
+        park(url, view);
+    }
+
+    /** Forgets a parked view, e.g. after its renderer died. Returns false if it wasn't parked. */
+    boolean remove(WebView view) {
+        Iterator<WebView> it = parked.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() == view) {
+                it.remove();
+                size = parked.size();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Evicts least recently used views until at most {@code max} are parked. */
+    void trimTo(int max) {
+        Iterator<WebView> it = parked.values().iterator();
+        while (parked.size() > max && it.hasNext()) {
+            WebView eldest = it.next();
+            it.remove();
+            evictions.incrementAndGet();
+            destroy(eldest);
+        }
+        size = parked.size();
+    }
+
+    void destroyAll() {
+        for (WebView view : parked.values()) destroy(view);
+        parked.clear();
+        size = 0;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    void recordVisit(String url) {
+        String key = keyFor(url);
+        Integer count = visits.get(key);
+        visits.put(key, count != null ? count + 1 : 1);
+    }
+
+    /** The most visited pages, most visited first. */
+    List<String> frequentUrls(int limit) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(visits.entrySet());
+        Collections.sort(entries, (a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < entries.size() && urls.size() < limit; i++) {
+            urls.add(entries.get(i).getKey());
+        }
+        return urls;
+    }
+
+    /** Saves the visit counts, keeping only the most visited pages. */
+    void persist() {
+        JSONObject json = new JSONObject();
+        try {
+            for (String url : frequentUrls(MAX_TRACKED_VISITS)) {
+                json.put(url, visits.get(url));
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to save visit counts", e);
+            return;
+        }
+        prefs.edit().putString(KEY_VISITS, json.toString()).apply();
+    }
+
+    JSONObject snapshot() throws JSONException {
+        long lookups = hits.get() + misses.get();
+        // The renderer runs in its own process, so this is only the app side of the pool's cost
+        Debug.MemoryInfo memoryInfo = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(memoryInfo);
+        return new JSONObject()
+                .put("capacity", capacity)
+                .put("memoryClassMb", memoryClassMb)
+                .put("size", size)
+                .put("hits", hits.get())
+                .put("misses", misses.get())
+                .put("hitRatePercent", lookups > 0 ? hits.get() * 100 / lookups : -1)
+                .put("evictions", evictions.get())
+                .put("prerenders", prerenders.get())
+                .put("appPssKb", memoryInfo.getTotalPss())
+                .put("nativeHeapKb", Debug.getNativeHeapAllocatedSize() / 1024);
+    }
+
+    private void loadVisits() {
+        String saved = prefs.getString(KEY_VISITS, null);
+        if (saved == null) return;
+        try {
+            JSONObject json = new JSONObject(saved);
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String url = keys.next();
+                visits.put(url, json.getInt(url));
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Discarding unreadable visit counts", e);
+        }
+    }
+
+    private static void destroy(WebView view) {
+        if (view.getParent() instanceof ViewGroup) {
+            ((ViewGroup) view.getParent()).removeView(view);
+        }
+        view.destroy();
+    }
+
+    /** Pages differing only in their fragment are the same page. */
+    static String keyFor(String url) {
+        int hash = url.indexOf('#');
+        return hash >= 0 ? url.substring(0, hash) : url;
+    }
+}
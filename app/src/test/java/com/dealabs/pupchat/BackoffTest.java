@@ -0,0 +1,50 @@
+package com.dealabs.pupchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BackoffTest {
+
+    @Test
+    public void delaysStayInTheUpperHalfOfADoublingWindow() {
+        Backoff backoff = new Backoff(1000, 60_000);
+        long window = 1000;
+        for (int attempt = 0; attempt < 6; attempt++) {
+            long delay = backoff.nextDelayMs();
+            assertTrue("attempt " + attempt + ": " + delay, delay >= window / 2 && delay <= window);
+            window *= 2;
+        }
+        assertEquals(6, backoff.getAttempts());
+    }
+
+    @Test
+    public void delaysNeverExceedTheMaximum() {
+        Backoff backoff = new Backoff(1000, 5000);
+        for (int attempt = 0; attempt < 100; attempt++) {
+            long delay = backoff.nextDelayMs();
+            assertTrue("attempt " + attempt + ": " + delay, delay <= 5000);
+            // From the fourth attempt on the window is capped at the maximum
+            if (attempt >= 3) assertTrue("attempt " + attempt + ": " + delay, delay >= 2500);
+        }
+    }
+
+    @Test
+    public void manyAttemptsDoNotOverflowTheWindow() {
+        Backoff backoff = new Backoff(Long.MAX_VALUE / 4, Long.MAX_VALUE / 2);
+        for (int attempt = 0; attempt < 70; attempt++) {
+            assertTrue(backoff.nextDelayMs() > 0);
+        }
+    }
+
+    @Test
+    public void resetStartsOverFromTheBaseDelay() {
+        Backoff backoff = new Backoff(1000, 60_000);
+        for (int attempt = 0; attempt < 5; attempt++) backoff.nextDelayMs();
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        long delay = backoff.nextDelayMs();
+        assertTrue(String.valueOf(delay), delay >= 500 && delay <= 1000);
+    }
+}
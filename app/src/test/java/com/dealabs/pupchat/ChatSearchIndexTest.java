@@ -0,0 +1,98 @@
+package com.dealabs.pupchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class ChatSearchIndexTest {
+
+    // --- toMatchExpression ---
+
+    @Test
+    public void queriesWithoutWordsMatchNothing() {
+        assertNull(ChatSearchIndex.toMatchExpression(null));
+        assertNull(ChatSearchIndex.toMatchExpression(""));
+        assertNull(ChatSearchIndex.toMatchExpression("  -- !? "));
+    }
+
+    @Test
+    public void everyWordIsQuotedAndTheLastIsAPrefix() {
+        assertEquals("\"walk*\"", ChatSearchIndex.toMatchExpression("walk"));
+        assertEquals("\"dog\" \"walk*\"", ChatSearchIndex.toMatchExpression("  Dog   WALK "));
+    }
+
+    @Test
+    public void ftsSyntaxInTheQueryIsTreatedAsText() {
+        assertEquals("\"a\" \"b\" \"or\" \"c*\"", ChatSearchIndex.toMatchExpression("a\"b OR c"));
+        assertEquals("\"body\" \"near\" \"x*\"", ChatSearchIndex.toMatchExpression("body:NEAR(x*)"));
+    }
+
+    @Test
+    public void lettersOutsideAsciiStayInWords() {
+        assertEquals("\"café\" \"über*\"", ChatSearchIndex.toMatchExpression("Café Über"));
+        assertEquals("\"user_42*\"", ChatSearchIndex.toMatchExpression("user_42"));
+    }
+
+    // --- bm25 ---
+
+    @Test
+    public void noMatchinfoScoresZero() {
+        assertEquals(0, ChatSearchIndex.bm25(null), 0);
+    }
+
+    @Test
+    public void moreHitsScoreHigher() {
+        double once = ChatSearchIndex.bm25(matchinfo(1000, 10, 10, 1, 0, 50));
+        double twice = ChatSearchIndex.bm25(matchinfo(1000, 10, 10, 2, 0, 50));
+        assertTrue(twice > once);
+        assertTrue(once > 0);
+    }
+
+    @Test
+    public void rarerWordsScoreHigher() {
+        double rare = ChatSearchIndex.bm25(matchinfo(1000, 10, 10, 1, 0, 5));
+        double common = ChatSearchIndex.bm25(matchinfo(1000, 10, 10, 1, 0, 400));
+        assertTrue(rare > common);
+    }
+
+    @Test
+    public void shorterMessagesScoreHigher() {
+        double shortMessage = ChatSearchIndex.bm25(matchinfo(1000, 10, 4, 1, 0, 50));
+        double longMessage = ChatSearchIndex.bm25(matchinfo(1000, 10, 40, 1, 0, 50));
+        assertTrue(shortMessage > longMessage);
+    }
+
+    @Test
+    public void bodyHitsCountMoreThanSenderHits() {
+        double body = ChatSearchIndex.bm25(matchinfo(1000, 10, 10, 1, 0, 50));
+        double sender = ChatSearchIndex.bm25(matchinfo(1000, 10, 10, 0, 1, 50));
+        assertTrue(body > sender);
+    }
+
+    @Test
+    public void wordsInMostMessagesStillCountALittle() {
+        assertTrue(ChatSearchIndex.bm25(matchinfo(1000, 10, 10, 1, 0, 990)) > 0);
+    }
+
+    /**
+     * Builds FTS4 matchinfo 'pcnalx' for one phrase over the (body, sender) columns. Both
+     * columns share the average and row lengths; the phrase is in {@code rowsWithHit} rows.
+     */
+    private static byte[] matchinfo(int rows, int avgLength, int length, int bodyHits, int senderHits, int rowsWithHit) {
+        int[] values = {
+                1, 2, rows,                              // p, c, n
+                avgLength, avgLength,                    // a
+                length, length,                          // l
+                bodyHits, bodyHits, rowsWithHit,         // x, body column
+                senderHits, senderHits, rowsWithHit,     // x, sender column
+        };
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4).order(ByteOrder.nativeOrder());
+        for (int value : values) buffer.putInt(value);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,62 @@
+package com.dealabs.pupchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class HostBlocklistTest {
+
+    private static final String LIST = "# Ads\n"
+            + "0.0.0.0 ads.example.com\n"
+            + "127.0.0.1   Tracker.NET   # trailing comment\n"
+            + "*.metrics.io\n"
+            + "\n"
+            + "localhost\n"
+            + "nodots\n";
+
+    private Set<String> hosts;
+
+    @Before
+    public void compileList() throws IOException {
+        hosts = HostBlocklist.compile(new ByteArrayInputStream(LIST.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void compileReadsHostsFilesAndPlainLists() {
+        assertEquals(new HashSet<>(Arrays.asList("ads.example.com", "tracker.net", "metrics.io")), hosts);
+    }
+
+    @Test
+    public void listedHostsAndTheirSubdomainsAreBlocked() {
+        assertTrue(HostBlocklist.isListed(hosts, "ads.example.com"));
+        assertTrue(HostBlocklist.isListed(hosts, "eu.ads.example.com"));
+        assertTrue(HostBlocklist.isListed(hosts, "tracker.net"));
+        assertTrue(HostBlocklist.isListed(hosts, "a.b.c.tracker.net"));
+        assertTrue(HostBlocklist.isListed(hosts, "cdn.metrics.io"));
+    }
+
+    @Test
+    public void suffixesOnlyMatchWholeLabels() {
+        assertFalse(HostBlocklist.isListed(hosts, "badads.example.com"));
+        assertFalse(HostBlocklist.isListed(hosts, "nottracker.net"));
+        assertFalse(HostBlocklist.isListed(hosts, "tracker.net.example.org"));
+    }
+
+    @Test
+    public void parentsOfListedHostsAreNotBlocked() {
+        assertFalse(HostBlocklist.isListed(hosts, "example.com"));
+        assertFalse(HostBlocklist.isListed(hosts, "www.example.com"));
+        assertFalse(HostBlocklist.isListed(hosts, "net"));
+        assertFalse(HostBlocklist.isListed(hosts, ""));
+    }
+}
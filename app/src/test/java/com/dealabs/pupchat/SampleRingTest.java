@@ -0,0 +1,41 @@
+package com.dealabs.pupchat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SampleRingTest {
+
+    private static final long[] ONE_TO_TEN = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+    @Test
+    public void percentileOfNothingIsMinusOne() {
+        assertEquals(-1, SampleRing.percentile(new long[0], 50));
+    }
+
+    @Test
+    public void percentileUsesTheNearestRank() {
+        assertEquals(5, SampleRing.percentile(ONE_TO_TEN, 50));
+        assertEquals(9, SampleRing.percentile(ONE_TO_TEN, 90));
+        assertEquals(10, SampleRing.percentile(ONE_TO_TEN, 95));
+        assertEquals(10, SampleRing.percentile(ONE_TO_TEN, 99));
+        // Ranks round up: 51% of 10 samples is the 6th
+        assertEquals(6, SampleRing.percentile(ONE_TO_TEN, 51));
+    }
+
+    @Test
+    public void percentileClampsToTheSamples() {
+        assertEquals(1, SampleRing.percentile(ONE_TO_TEN, 0));
+        assertEquals(10, SampleRing.percentile(ONE_TO_TEN, 100));
+        assertEquals(7, SampleRing.percentile(new long[]{7}, 99));
+    }
+
+    @Test
+    public void ringKeepsTheNewestSamplesOnceFull() {
+        SampleRing ring = new SampleRing(3);
+        for (long value = 5; value >= 1; value--) ring.add(value);
+        assertEquals(5, ring.getCount());
+        assertArrayEquals(new long[]{1, 2, 3}, ring.sortedSnapshot());
+    }
+}
@@ -0,0 +1,24 @@
+<!DOCTYPE html>
+<html>
+<head>
+    <meta charset="utf-8">
+    <meta name="viewport" content="width=device-width, initial-scale=1">
+    <title>PupChat - Home</title>
+    <link rel="stylesheet" href="/css/style.css">
+</head>
+<body>
+<!-- Recorded copy of the site's home page, trimmed to what the benchmarks touch -->
+<header class="bar">PupChat</header>
+<ul id="messages">
+    <li class="message"><b>rex</b> Anyone up for the park later?</li>
+    <li class="message"><b>bella</b> Only if there are tennis balls.</li>
+    <li class="message"><b>rex</b> There are always tennis balls.</li>
+</ul>
+<form id="composer" class="bar">
+    <input id="message" name="message" type="text" placeholder="Message">
+    <label for="attach" id="attach-label">Photo</label>
+    <input id="attach" name="attach" type="file" accept="image/*">
+</form>
+<script src="/js/app.js"></script>
+</body>
+</html>
@@ -0,0 +1,21 @@
+<!DOCTYPE html>
+<html>
+<head>
+    <meta charset="utf-8">
+    <meta name="viewport" content="width=device-width, initial-scale=1">
+    <title>PupChat - Login</title>
+    <link rel="stylesheet" href="/css/style.css">
+</head>
+<body>
+<!-- Recorded copy of the site's login page, trimmed to what the benchmarks touch -->
+<main class="card">
+    <h1>PupChat</h1>
+    <form id="login" action="/home.php" method="get">
+        <input id="username" name="username" type="text" placeholder="Username">
+        <input id="password" name="password" type="password" placeholder="Password">
+        <button id="submit" type="submit">Log in</button>
+    </form>
+</main>
+<script src="/js/app.js"></script>
+</body>
+</html>
@@ -0,0 +1,49 @@
+package com.dealabs.pupchat.benchmark;
+
+import androidx.benchmark.macro.junit4.BaselineProfileRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import kotlin.Unit;
+
+/**
+ * Collects the baseline profile shipped as app/src/main/baseline-prof.txt. Needs a rooted
+ * device or an emulator image without Google Play; {@code ./gradlew :benchmark:updateBaselineProfile}
+ * then copies the generated file over the old one. Rerun after changing anything on the
+ * startup path.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class BaselineProfileGenerator {
+
+    @ClassRule
+    public static final MockPupChatServer server = new MockPupChatServer();
+
+    @Rule
+    public final BaselineProfileRule baselineProfileRule = new BaselineProfileRule();
+
+    @Test
+    public void startupAndHome() {
+        baselineProfileRule.collect(
+                PupChatScenarios.TARGET_PACKAGE,
+                15,
+                3,
+                null,
+                true,
+                false,
+                rule -> true,
+                scope -> {
+                    PupChatScenarios.grantPermissions(scope);
+                    scope.pressHome();
+                    scope.startActivityAndWait();
+                    PupChatScenarios.goToHome(scope);
+                    PupChatScenarios.openAndCancelFileChooser(scope);
+                    return Unit.INSTANCE;
+                });
+    }
+}
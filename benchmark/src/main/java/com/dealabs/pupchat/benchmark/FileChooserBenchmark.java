@@ -0,0 +1,61 @@
+package com.dealabs.pupchat.benchmark;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.FrameTimingMetric;
+import androidx.benchmark.macro.Metric;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.TraceSectionMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+import kotlin.Unit;
+
+/**
+ * Round trip from the page's file input to the WebView getting its result back: the chooser
+ * is opened from the mock home page and cancelled.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class FileChooserBenchmark {
+
+    private static final int ITERATIONS = 10;
+
+    @ClassRule
+    public static final MockPupChatServer server = new MockPupChatServer();
+
+    @Rule
+    public final MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    @Test
+    public void fileChooserRoundTrip() {
+        List<Metric> metrics = Arrays.asList(
+                new TraceSectionMetric(PupChatScenarios.SECTION_FILE_CHOOSER, TraceSectionMetric.Mode.First, true),
+                new FrameTimingMetric());
+        benchmarkRule.measureRepeated(
+                PupChatScenarios.TARGET_PACKAGE,
+                metrics,
+                new CompilationMode.Partial(),
+                StartupMode.WARM,
+                ITERATIONS,
+                scope -> {
+                    PupChatScenarios.grantPermissions(scope);
+                    scope.pressHome();
+                    scope.startActivityAndWait();
+                    PupChatScenarios.goToHome(scope);
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    PupChatScenarios.openAndCancelFileChooser(scope);
+                    return Unit.INSTANCE;
+                });
+    }
+}
@@ -0,0 +1,123 @@
+package com.dealabs.pupchat.benchmark;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.rules.ExternalResource;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal HTTP server on the device serving recorded copies of the site from assets/mock, so
+ * benchmark runs don't depend on the live site or the network. The app's benchmark build type
+ * points BASE_URL at {@link #PORT}.
+ */
+class MockPupChatServer extends ExternalResource {
+
+    private static final String TAG = "PupChatMockServer";
+    static final int PORT = 8089;
+    private static final String ASSET_ROOT = "mock";
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private ServerSocket serverSocket;
+    private AssetManager assets;
+
+    @Override
+    protected void before() throws IOException {
+        assets = InstrumentationRegistry.getInstrumentation().getContext().getAssets();
+        serverSocket = new ServerSocket(PORT, 16, InetAddress.getByName("127.0.0.1"));
+        serverSocket.setReuseAddress(true);
+        executor.execute(this::acceptLoop);
+    }
+
+    @Override
+    protected void after() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing server socket", e);
+        }
+        executor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                executor.execute(() -> handle(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) Log.w(TAG, "Accept failed", e);
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1));
+            String requestLine = reader.readLine();
+            if (requestLine == null) return;
+            // Headers and bodies are ignored; every page is static
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) { }
+
+            String[] parts = requestLine.split(" ");
+            String path = parts.length > 1 ? parts[1] : "/";
+            int query = path.indexOf('?');
+            if (query >= 0) path = path.substring(0, query);
+            if (path.equals("/")) path = "/login.php";
+
+            OutputStream out = s.getOutputStream();
+            byte[] body = read(path);
+            if (body == null) {
+                writeResponse(out, "404 Not Found", "text/plain", new byte[0]);
+            } else {
+                writeResponse(out, "200 OK", contentTypeOf(path), body);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Request failed", e);
+        }
+    }
+
+    private byte[] read(String path) {
+        if (path.contains("..")) return null;
+        try (InputStream in = assets.open(ASSET_ROOT + path)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int n;
+            while ((n = in.read(chunk)) != -1) buffer.write(chunk, 0, n);
+            return buffer.toByteArray();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeResponse(OutputStream out, String status, String contentType, byte[] body) throws IOException {
+        String headers = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Cache-Control: no-store\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(headers.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(body);
+        out.flush();
+    }
+
+    private static String contentTypeOf(String path) {
+        if (path.endsWith(".css")) return "text/css";
+        if (path.endsWith(".js")) return "application/javascript";
+        return "text/html; charset=utf-8";
+    }
+}
@@ -0,0 +1,79 @@
+package com.dealabs.pupchat.benchmark;
+
+import androidx.benchmark.macro.MacrobenchmarkScope;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.UiDevice;
+import androidx.test.uiautomator.UiObject2;
+import androidx.test.uiautomator.Until;
+
+import java.io.IOException;
+
+/** UI steps shared by the benchmarks and the baseline profile generator. */
+final class PupChatScenarios {
+
+    static final String TARGET_PACKAGE = "com.dea.pupchat";
+    // Trace sections emitted by the app, see StartupTrace
+    static final String SECTION_INITIAL_LOAD = "PupChat.initialLoad";
+    static final String SECTION_FILE_CHOOSER = "PupChat.fileChooser";
+    // StartupScheduler's critical-path stage: WebView setup up to loadInitialUrl()
+    static final String SECTION_STARTUP_FIRST_LOAD = "PupChat.startup.firstLoad";
+
+    private static final long PAGE_TIMEOUT_MS = 15_000;
+    private static final long UI_TIMEOUT_MS = 5_000;
+    private static final String[] RUNTIME_PERMISSIONS = {
+            "android.permission.CAMERA",
+            "android.permission.POST_NOTIFICATIONS",
+    };
+
+    private PupChatScenarios() {
+    }
+
+    /**
+     * Grants the runtime permissions the app asks for on its own, so no permission dialog
+     * (camera before the first file chooser, notifications once idle) gets in the way of a
+     * scenario. Granting a permission the OS version doesn't have just prints an error.
+     */
+    static void grantPermissions(MacrobenchmarkScope scope) {
+        UiDevice device = scope.getDevice();
+        for (String permission : RUNTIME_PERMISSIONS) {
+            try {
+                device.executeShellCommand("pm grant " + TARGET_PACKAGE + " " + permission);
+            } catch (IOException e) {
+                throw new AssertionError("Unable to grant " + permission, e);
+            }
+        }
+    }
+
+    /** Waits until the WebView shows either mock page. */
+    static void waitForPage(MacrobenchmarkScope scope) {
+        UiDevice device = scope.getDevice();
+        boolean loaded = device.wait(Until.hasObject(By.text("Log in")), PAGE_TIMEOUT_MS)
+                || device.hasObject(By.text("Photo"));
+        if (!loaded) throw new AssertionError("No page loaded; is the mock server running?");
+    }
+
+    /** Logs in from the mock login page if needed and waits for home. */
+    static void goToHome(MacrobenchmarkScope scope) {
+        UiDevice device = scope.getDevice();
+        waitForPage(scope);
+        UiObject2 login = device.findObject(By.text("Log in"));
+        if (login != null) login.click();
+        if (!device.wait(Until.hasObject(By.text("Photo")), PAGE_TIMEOUT_MS)) {
+            throw new AssertionError("Home page didn't load");
+        }
+    }
+
+    /** Opens the file chooser from the home page and cancels it. */
+    static void openAndCancelFileChooser(MacrobenchmarkScope scope) {
+        UiDevice device = scope.getDevice();
+        device.findObject(By.text("Photo")).click();
+        // The chooser covers the app, so the page's text leaves the active window
+        if (!device.wait(Until.gone(By.text("Photo")), UI_TIMEOUT_MS)) {
+            throw new AssertionError("File chooser didn't open");
+        }
+        device.pressBack();
+        if (!device.wait(Until.hasObject(By.text("Photo")), UI_TIMEOUT_MS)) {
+            throw new AssertionError("App didn't come back from the file chooser");
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.dealabs.pupchat.benchmark;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.Metric;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.StartupTimingMetric;
+import androidx.benchmark.macro.TraceSectionMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+import kotlin.Unit;
+
+/**
+ * Cold and warm starts of MainActivity, with and without the shipped baseline profile. Besides
+ * time to initial display, records the critical startup stage and how long loadInitialUrl()
+ * takes to reach onPageFinished.
+ * The cold-start medians are checked by the checkStartupRegression task.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+
+    private static final int ITERATIONS = 10;
+
+    @ClassRule
+    public static final MockPupChatServer server = new MockPupChatServer();
+
+    @Rule
+    public final MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    @Test
+    public void coldStartNoCompilation() {
+        startup(StartupMode.COLD, new CompilationMode.None());
+    }
+
+    @Test
+    public void coldStartBaselineProfile() {
+        startup(StartupMode.COLD, new CompilationMode.Partial());
+    }
+
+    @Test
+    public void warmStartNoCompilation() {
+        startup(StartupMode.WARM, new CompilationMode.None());
+    }
+
+    @Test
+    public void warmStartBaselineProfile() {
+        startup(StartupMode.WARM, new CompilationMode.Partial());
+    }
+
+    private void startup(StartupMode startupMode, CompilationMode compilationMode) {
+        List<Metric> metrics = Arrays.asList(
+                new StartupTimingMetric(),
+                new TraceSectionMetric(PupChatScenarios.SECTION_STARTUP_FIRST_LOAD, TraceSectionMetric.Mode.First, true),
+                new TraceSectionMetric(PupChatScenarios.SECTION_INITIAL_LOAD, TraceSectionMetric.Mode.First, true));
+        benchmarkRule.measureRepeated(
+                PupChatScenarios.TARGET_PACKAGE,
+                metrics,
+                compilationMode,
+                startupMode,
+                ITERATIONS,
+                scope -> {
+                    PupChatScenarios.grantPermissions(scope);
+                    scope.pressHome();
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    scope.startActivityAndWait();
+                    PupChatScenarios.waitForPage(scope);
+                    return Unit.INSTANCE;
+                });
+    }
+}